@@ -0,0 +1,59 @@
+package server;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/***
+ * Rooms full of members that throw their frames away, so only the server side
+ * is measured. Same setup as BroadcastBenchmark.room.
+ */
+final class BenchRooms {
+    // a typical chat line
+    final static String TEXT = "hello everyone, how's it going?";
+
+    private BenchRooms() {
+    }
+
+    static class NullChannel implements ClientChannel {
+	long bytes;
+	final OutboundQueue outbound = new OutboundQueue();
+
+	@Override
+	public boolean send(byte[] frame) {
+	    bytes += frame.length;
+	    return true;
+	}
+
+	@Override
+	public OutboundQueue getOutbound() {
+	    return outbound;
+	}
+
+	@Override
+	public void close() {
+	}
+
+	@Override
+	public boolean isClosed() {
+	    return false;
+	}
+    }
+
+    static Room room(int members) {
+	Room room = new Room("bench", null);
+	for (int i = 0; i < members; i++) {
+	    ServerThread client = new ServerThread(null);
+	    client.setChannel(new NullChannel());
+	    room.addClient(client);
+	}
+	return room;
+    }
+
+    /***
+     * Keeps per join and per room log lines out of the results
+     */
+    static void quiet() {
+	Logger.getLogger("server").setLevel(Level.WARNING);
+	Logger.getLogger("").setLevel(Level.WARNING);
+    }
+}
\ No newline at end of file
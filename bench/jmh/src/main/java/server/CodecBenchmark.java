@@ -0,0 +1,51 @@
+package server;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/***
+ * Encoding and decoding one chat message with each codec
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+    @Param({ "binary", "serialized" })
+    public String codecName;
+    private PayloadCodec codec;
+    private Payload payload;
+    private byte[] frame;
+
+    @Setup
+    public void setup() throws IOException {
+	codec = codecName.equals("binary") ? Frames.BINARY : Frames.SERIALIZED;
+	payload = ServerThread.buildMessage("sender", BenchRooms.TEXT);
+	payload.setSequence(123456789L);
+	frame = codec.encode(payload);
+    }
+
+    @Benchmark
+    public byte[] encode() throws IOException {
+	return codec.encode(payload);
+    }
+
+    @Benchmark
+    public Payload decode() throws IOException {
+	return codec.decode(frame, Frames.HEADER_SIZE, frame.length - Frames.HEADER_SIZE);
+    }
+}
\ No newline at end of file
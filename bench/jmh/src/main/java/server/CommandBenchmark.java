@@ -0,0 +1,55 @@
+package server;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/***
+ * What processCommands costs for a registered command, an unknown one and a
+ * plain message, which every chat line goes through
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandBenchmark {
+    private Room room;
+    private ServerThread sender;
+    // the command's work, so it can't be dropped
+    long sink;
+
+    @Setup
+    public void setup() {
+	BenchRooms.quiet();
+	Room.registerCommand("bench", (room, client, args) -> sink += args.length());
+	room = BenchRooms.room(1);
+	sender = room.getClients().get(0);
+    }
+
+    @Benchmark
+    public boolean command() {
+	return room.processCommands("/bench some args", sender);
+    }
+
+    @Benchmark
+    public boolean unknownCommand() {
+	return room.processCommands("/nosuchcommand", sender);
+    }
+
+    @Benchmark
+    public boolean plainText() {
+	return room.processCommands(BenchRooms.TEXT, sender);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,44 @@
+package server;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/***
+ * Room.sendMessage to rooms of growing size: numbering, the recent frames and
+ * one shared frame handed to every member
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FanOutBenchmark {
+    @Param({ "10", "100", "1000", "10000" })
+    public int members;
+    private Room room;
+    private ServerThread sender;
+
+    @Setup
+    public void setup() {
+	BenchRooms.quiet();
+	room = BenchRooms.room(members);
+	sender = room.getClients().get(0);
+    }
+
+    @Benchmark
+    public void sendMessage() {
+	room.sendMessage(sender, BenchRooms.TEXT);
+    }
+}
\ No newline at end of file
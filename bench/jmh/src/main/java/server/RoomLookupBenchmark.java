@@ -0,0 +1,49 @@
+package server;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/***
+ * SocketServer.getRoom against the number of open rooms
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RoomLookupBenchmark {
+    @Param({ "10", "1000", "100000" })
+    public int rooms;
+    private SocketServer server;
+    private String[] names;
+    private int next;
+
+    @Setup
+    public void setup() {
+	BenchRooms.quiet();
+	server = new SocketServer();
+	names = new String[rooms];
+	for (int i = 0; i < rooms; i++) {
+	    names[i] = "Room" + i;
+	    server.createNewRoom(names[i]);
+	}
+    }
+
+    @Benchmark
+    public Room getRoom() {
+	next = next + 1 == rooms ? 0 : next + 1;
+	return server.getRoom(names[next]);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,102 @@
+package server;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/***
+ * CPU cost of one room broadcast against room size, encoding per member (the
+ * old Room.sendMessage path) versus encoding once and sharing the frame.
+ * Members write into in-memory sinks so only the server side is measured.
+ * 
+ * <pre>
+ * javac -d out src/server/*.java bench/server/*.java
+ * java -cp out server.BroadcastBenchmark
+ * </pre>
+ */
+public class BroadcastBenchmark {
+    private final static ThreadMXBean cpu = ManagementFactory.getThreadMXBean();
+
+    /***
+     * Accepts frames and throws them away, counting bytes so the JIT can't skip
+     * the work
+     */
+    static class NullChannel implements ClientChannel {
+	long bytes;
+	final OutboundQueue outbound = new OutboundQueue();
+
+	@Override
+	public boolean send(byte[] frame) {
+	    bytes += frame.length;
+	    return true;
+	}
+
+	@Override
+	public OutboundQueue getOutbound() {
+	    return outbound;
+	}
+
+	@Override
+	public void close() {
+	}
+
+	@Override
+	public boolean isClosed() {
+	    return false;
+	}
+    }
+
+    static Room room(int members) {
+	Room room = new Room("bench", null);
+	for (int i = 0; i < members; i++) {
+	    ServerThread client = new ServerThread(null);
+	    client.setChannel(new NullChannel());
+	    room.addClient(client);
+	}
+	return room;
+    }
+
+    /***
+     * @return cpu nanoseconds per broadcast
+     */
+    static double perMember(ServerThread[] members, int broadcasts) {
+	long start = cpu.getCurrentThreadCpuTime();
+	for (int b = 0; b < broadcasts; b++) {
+	    for (ServerThread m : members) {
+		m.send("sender", "hello everyone, how's it going?");
+	    }
+	}
+	return (cpu.getCurrentThreadCpuTime() - start) / (double) broadcasts;
+    }
+
+    static double encodeOnce(Room room, ServerThread sender, int broadcasts) {
+	long start = cpu.getCurrentThreadCpuTime();
+	for (int b = 0; b < broadcasts; b++) {
+	    room.sendMessage(sender, "hello everyone, how's it going?");
+	}
+	return (cpu.getCurrentThreadCpuTime() - start) / (double) broadcasts;
+    }
+
+    public static void main(String[] args) {
+	Logger.getLogger("server").setLevel(Level.WARNING);
+	Logger.getLogger("").setLevel(Level.WARNING);
+	System.out.println("members  per-member(us)  encode-once(us)");
+	for (int members : new int[] { 10, 100, 500, 1000, 5000 }) {
+	    Room room = room(members);
+	    ServerThread[] snapshot = new ServerThread[members];
+	    for (int i = 0; i < members; i++) {
+		snapshot[i] = new ServerThread(null);
+		snapshot[i].setChannel(new NullChannel());
+	    }
+	    ServerThread sender = snapshot[0];
+	    int broadcasts = Math.max(200, 2_000_000 / members);
+	    // warm up both paths before measuring
+	    perMember(snapshot, broadcasts);
+	    encodeOnce(room, sender, broadcasts);
+	    double before = perMember(snapshot, broadcasts);
+	    double after = encodeOnce(room, sender, broadcasts);
+	    System.out.printf("%7d  %14.1f  %15.1f%n", members, before / 1000, after / 1000);
+	}
+    }
+}
@@ -0,0 +1,182 @@
+package server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.ObjectName;
+
+/***
+ * Connection churn against a server running in this JVM: rounds of connect,
+ * CONNECT and close cycles (half saying DISCONNECT, half just dropping the
+ * socket) plus sockets that connect and never send anything. Afterwards every
+ * connection must be gone, the half-open ones closed by the server, and a live
+ * heap histogram must show no per connection objects left behind. Live heap
+ * after each round should stay flat.
+ * 
+ * <pre>
+ * javac -d out src/server/*.java bench/server/*.java
+ * java -cp out server.ChurnCheck [port] [blocking|nio|virtual] [cycles per round]
+ * </pre>
+ * 
+ * Exits with status 1 if anything is retained or a half-open socket is left
+ * open.
+ */
+public class ChurnCheck {
+    private final static int ROUNDS = 5;
+    private final static int HALF_OPEN = 300;
+    // short timeouts so everything a connection schedules is due within seconds
+    private final static long TIMEOUT_MILLIS = 1000;
+    // per connection classes that must all be gone once the churn stops
+    private final static String[] TRACKED = { "server.ServerThread", "server.SocketClientChannel",
+	    "server.NioServer$NioClientChannel", "server.OutboundQueue", "server.SessionRegistry$Session",
+	    "server.TimerWheel$Timeout", "server.Room" };
+
+    private static byte[] connectFrame(String name) throws IOException {
+	Payload p = new Payload();
+	p.setPayloadType(PayloadType.CONNECT);
+	p.setClientName(name);
+	return Frames.encode(p);
+    }
+
+    private static byte[] disconnectFrame() throws IOException {
+	Payload p = new Payload();
+	p.setPayloadType(PayloadType.DISCONNECT);
+	return Frames.encode(p);
+    }
+
+    /***
+     * Connects, says who it is, waits until the server has answered (so it's in
+     * the Lobby) and leaves
+     */
+    private static void cycle(int port, int i, byte[] disconnect) throws IOException {
+	try (Socket s = new Socket("127.0.0.1", port)) {
+	    s.setSoTimeout(5000);
+	    OutputStream out = s.getOutputStream();
+	    out.write(connectFrame("churn" + i));
+	    out.flush();
+	    // the roster, at least, comes back once we've joined
+	    if (s.getInputStream().read() < 0) {
+		throw new IOException("Server closed cycle " + i);
+	    }
+	    if (i % 2 == 0) {
+		out.write(disconnect);
+		out.flush();
+	    }
+	}
+    }
+
+    /***
+     * A class histogram of live objects, taking it runs a full collection
+     */
+    private static String histogram() throws Exception {
+	return (String) ManagementFactory.getPlatformMBeanServer().invoke(
+		new ObjectName("com.sun.management:type=DiagnosticCommand"), "gcClassHistogram",
+		new Object[] { new String[0] }, new String[] { String[].class.getName() });
+    }
+
+    /***
+     * Live instances of the TRACKED classes
+     */
+    private static Map<String, Long> liveInstances() throws Exception {
+	String histogram = histogram();
+	Map<String, Long> counts = new LinkedHashMap<String, Long>();
+	for (String c : TRACKED) {
+	    counts.put(c, 0L);
+	}
+	for (String line : histogram.split("\n")) {
+	    String[] cols = line.trim().split("\\s+");
+	    // num: #instances #bytes class name (module)
+	    if (cols.length >= 4 && counts.containsKey(cols[3])) {
+		counts.put(cols[3], Long.parseLong(cols[1]));
+	    }
+	}
+	return counts;
+    }
+
+    /***
+     * Bytes of live objects, from the histogram's "Total instances bytes" line
+     */
+    private static long liveBytes() throws Exception {
+	String histogram = histogram().trim();
+	String[] total = histogram.substring(histogram.lastIndexOf('\n') + 1).trim().split("\\s+");
+	return Long.parseLong(total[2]);
+    }
+
+    public static void main(String[] args) throws Exception {
+	int port = args.length > 0 ? Integer.parseInt(args[0]) : 3999;
+	String mode = args.length > 1 ? args[1] : "blocking";
+	int cycles = args.length > 2 ? Integer.parseInt(args[2]) : 2000;
+	System.setProperty("server.handshakeMillis", String.valueOf(TIMEOUT_MILLIS));
+	System.setProperty("server.heartbeatMillis", String.valueOf(TIMEOUT_MILLIS));
+	System.setProperty("server.resumeGraceMillis", String.valueOf(TIMEOUT_MILLIS));
+	System.setProperty("server.history.dir", "");
+	Logger.getLogger("").setLevel(Level.WARNING);
+	Logger.getLogger("server").setLevel(Level.WARNING);
+	Thread server = new Thread(() -> SocketServer.main(new String[] { String.valueOf(port), mode }), "server");
+	server.setDaemon(true);
+	server.start();
+	Thread.sleep(500);
+	byte[] disconnect = disconnectFrame();
+
+	Map<String, Long> before = liveInstances();
+	System.out.printf("%-8s %12s %14s%n", "round", "cycles", "live heap KB");
+	for (int round = 1; round <= ROUNDS; round++) {
+	    for (int i = 0; i < cycles; i++) {
+		cycle(port, round * cycles + i, disconnect);
+	    }
+	    System.out.printf("%-8d %12d %14d%n", round, cycles, liveBytes() / 1024);
+	}
+
+	List<Socket> halfOpen = new ArrayList<Socket>();
+	for (int i = 0; i < HALF_OPEN; i++) {
+	    Socket s = new Socket("127.0.0.1", port);
+	    s.setSoTimeout((int) (TIMEOUT_MILLIS * 5));
+	    halfOpen.add(s);
+	}
+	int closedByServer = 0;
+	for (Socket s : halfOpen) {
+	    try (InputStream in = s.getInputStream()) {
+		if (in.read() < 0) {
+		    closedByServer++;
+		}
+	    }
+	    catch (SocketTimeoutException e) {
+		// still open, counted below
+	    }
+	    catch (IOException e) {
+		// reset by the server counts as closed
+		closedByServer++;
+	    }
+	    finally {
+		s.close();
+	    }
+	}
+	System.out.println("half-open sockets closed by the server: " + closedByServer + "/" + HALF_OPEN);
+
+	// everything a connection scheduled (handshake, heartbeat, resume grace)
+	// is due by now plus a tick or two of the wheel
+	Thread.sleep(TIMEOUT_MILLIS * 2 + SocketServer.WHEEL_TICK_MILLIS * 4);
+	Map<String, Long> after = liveInstances();
+	boolean isRetained = false;
+	System.out.printf("%-36s %8s %8s%n", "live instances", "before", "after");
+	for (String c : TRACKED) {
+	    System.out.printf("%-36s %8d %8d%n", c, before.get(c), after.get(c));
+	    if (after.get(c) > before.get(c)) {
+		isRetained = true;
+	    }
+	}
+	boolean isOk = !isRetained && closedByServer == HALF_OPEN;
+	System.out.println(isOk ? "ok" : "FAILED");
+	System.exit(isOk ? 0 : 1);
+    }
+}
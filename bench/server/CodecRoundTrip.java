@@ -0,0 +1,222 @@
+package server;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Objects;
+
+/***
+ * Round trip check for both codecs: every PayloadType with null, empty and
+ * awkward field values (extreme numbers, multi-byte text, surrogate pairs and
+ * lone surrogates) must decode to what was encoded, and malformed bodies must
+ * fail with an IOException rather than anything the transports don't catch.
+ * 
+ * <pre>
+ * javac -d out src/server/*.java bench/server/*.java
+ * java -cp out server.CodecRoundTrip
+ * </pre>
+ * 
+ * Exits with status 1 if anything fails.
+ */
+public class CodecRoundTrip {
+    private final static String[] TEXTS = { null, "", "a", "hello everyone", "caf\u00e9", "\u20ac100",
+	    "\ud83d\ude00 grin", "\ud83d\ude00", "lone high \ud83d", "lone low \ude00 here", "\ude00\ud83d",
+	    "nul\u0000char", "\uffff",
+	    repeat("x\u00e9\u20ac\ud83d\ude00", 25_000) };
+    private final static int[] NUMBERS = { 0, 1, -1, 63, 64, -64, -65, 127, 128, Integer.MAX_VALUE,
+	    Integer.MIN_VALUE };
+    private final static long[] SEQUENCES = { 0, 1, 127, 128, 1L << 35, System.currentTimeMillis() * 1000,
+	    Long.MAX_VALUE, -1, Long.MIN_VALUE };
+    private static int checks = 0;
+    private static final List<String> failures = new ArrayList<String>();
+
+    private static String repeat(String s, int times) {
+	StringBuilder b = new StringBuilder(s.length() * times);
+	for (int i = 0; i < times; i++) {
+	    b.append(s);
+	}
+	return b.toString();
+    }
+
+    private static List<List<String>> nameLists() {
+	List<List<String>> lists = new ArrayList<List<String>>();
+	lists.add(null);
+	lists.add(new ArrayList<String>());
+	lists.add(new ArrayList<String>(Arrays.asList("")));
+	lists.add(new ArrayList<String>(Arrays.asList("alice", "b\u00f6b", "\ud83d\ude00", "lone \ud83d", "")));
+	List<String> many = new ArrayList<String>();
+	for (int i = 0; i < 4096; i++) {
+	    many.add("user" + i);
+	}
+	lists.add(many);
+	return lists;
+    }
+
+    /***
+     * What a string looks like after a trip through the binary codec, which
+     * writes lone surrogates as '?' like the JDK's UTF-8 encoder
+     */
+    private static String binaryForm(String s) {
+	return s == null ? null : new String(s.getBytes(StandardCharsets.UTF_8), StandardCharsets.UTF_8);
+    }
+
+    private static void fail(String what) {
+	if (failures.size() < 50) {
+	    failures.add(what);
+	}
+	else if (failures.size() == 50) {
+	    failures.add("...");
+	}
+    }
+
+    private static void check(PayloadCodec codec, Payload p) {
+	checks++;
+	boolean isBinary = codec == Frames.BINARY;
+	String label = (isBinary ? "binary " : "serialized ") + p.getPayloadType() + " number=" + p.getNumber()
+		+ " sequence=" + p.getSequence();
+	try {
+	    byte[] frame = codec.encode(p);
+	    int length = frame.length - Frames.HEADER_SIZE;
+	    int prefix = ((frame[0] & 0xFF) << 24) | ((frame[1] & 0xFF) << 16) | ((frame[2] & 0xFF) << 8)
+		    | (frame[3] & 0xFF);
+	    if (prefix != length) {
+		fail(label + ": length prefix " + prefix + " but body is " + length);
+	    }
+	    if (Frames.codecFor(frame, Frames.HEADER_SIZE) != codec) {
+		fail(label + ": frame isn't recognized as its own codec");
+	    }
+	    Payload d = Frames.decode(frame, Frames.HEADER_SIZE, length);
+	    String name = isBinary ? binaryForm(p.getClientName()) : p.getClientName();
+	    String message = isBinary ? binaryForm(p.getMessage()) : p.getMessage();
+	    List<String> names = p.getClientNames();
+	    if (isBinary && names != null) {
+		names = new ArrayList<String>(names);
+		names.replaceAll(CodecRoundTrip::binaryForm);
+	    }
+	    if (d.getPayloadType() != p.getPayloadType() || d.getNumber() != p.getNumber()
+		    || d.getSequence() != p.getSequence() || !Objects.equals(d.getClientName(), name)
+		    || !Objects.equals(d.getMessage(), message) || !Objects.equals(d.getClientNames(), names)) {
+		fail(label + ": decoded differently");
+	    }
+	}
+	catch (IOException | RuntimeException e) {
+	    fail(label + ": " + e);
+	}
+    }
+
+    private static void roundTrips() {
+	List<List<String>> lists = nameLists();
+	for (PayloadCodec codec : new PayloadCodec[] { Frames.BINARY, Frames.SERIALIZED }) {
+	    for (PayloadType type : PayloadType.values()) {
+		for (String text : TEXTS) {
+		    Payload p = new Payload();
+		    p.setPayloadType(type);
+		    p.setClientName(text);
+		    p.setMessage(text);
+		    check(codec, p);
+		}
+		for (List<String> names : lists) {
+		    Payload p = new Payload();
+		    p.setPayloadType(type);
+		    p.setClientNames(names);
+		    check(codec, p);
+		}
+		for (int number : NUMBERS) {
+		    for (long sequence : SEQUENCES) {
+			Payload p = new Payload();
+			p.setPayloadType(type);
+			p.setNumber(number);
+			p.setSequence(sequence);
+			check(codec, p);
+		    }
+		}
+	    }
+	}
+    }
+
+    /***
+     * Untyped payloads can't be encoded by the binary codec or decoded by either
+     */
+    private static void untyped() throws IOException {
+	checks++;
+	try {
+	    Frames.BINARY.encode(new Payload());
+	    fail("binary encoded a payload with no type");
+	}
+	catch (IOException e) {
+	    // expected
+	}
+	checks++;
+	byte[] frame = Frames.SERIALIZED.encode(new Payload());
+	expectIOException("serialized payload with no type", frame, Frames.HEADER_SIZE,
+		frame.length - Frames.HEADER_SIZE);
+    }
+
+    /***
+     * Every strict prefix of a binary body is missing a field its flags
+     * promise, and bytes that aren't a frame at all must be rejected
+     */
+    private static void malformed() throws IOException {
+	Payload p = ServerThread.buildNames(PayloadType.JOINED, Arrays.asList("alice", "b\u00f6b"), "joined \ud83d\ude00");
+	p.setClientName("sender");
+	p.setNumber(-300);
+	p.setSequence(1L << 40);
+	byte[] frame = Frames.BINARY.encode(p);
+	for (int length = 0; length < frame.length - Frames.HEADER_SIZE; length++) {
+	    checks++;
+	    expectIOException("binary body cut to " + length + " bytes", frame, Frames.HEADER_SIZE, length);
+	}
+	byte[] unknownType = { (byte) PayloadType.values().length, 0, 0 };
+	checks++;
+	expectIOException("binary unknown type", unknownType, 0, unknownType.length);
+	byte[] hugeCount = { (byte) PayloadType.JOINED.ordinal(), 1 << 2, 0, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF,
+		(byte) 0xFF, 0x07 };
+	checks++;
+	expectIOException("binary huge name count", hugeCount, 0, hugeCount.length);
+	byte[] garbage = { SerializedPayloadCodec.MAGIC, (byte) 0xED, 0, 5, 1, 2, 3 };
+	checks++;
+	expectIOException("serialized garbage", garbage, 0, garbage.length);
+	byte[] notPayload = Frames.SERIALIZED.encode(p);
+	checks++;
+	expectIOException("serialized body cut short", notPayload, Frames.HEADER_SIZE, 10);
+	// any class a Payload isn't made of is refused before it's built
+	Payload smuggled = ServerThread.buildNames(PayloadType.ROSTER, new ArrayList<String>(), null);
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	List<Object> raw = (List) smuggled.getClientNames();
+	raw.add(new HashMap<String, String>());
+	byte[] filtered = Frames.SERIALIZED.encode(smuggled);
+	checks++;
+	expectIOException("serialized foreign class", filtered, Frames.HEADER_SIZE, filtered.length - Frames.HEADER_SIZE);
+    }
+
+    private static void expectIOException(String what, byte[] body, int offset, int length) {
+	try {
+	    Payload d = Frames.decode(body, offset, length);
+	    fail(what + ": decoded to " + d);
+	}
+	catch (IOException e) {
+	    // expected
+	}
+	catch (RuntimeException e) {
+	    fail(what + ": " + e);
+	}
+    }
+
+    public static void main(String[] args) throws IOException {
+	roundTrips();
+	untyped();
+	malformed();
+	Collections.sort(failures);
+	for (String f : failures) {
+	    System.out.println("FAIL " + f);
+	}
+	System.out.println(checks + " checks, " + (failures.isEmpty() ? "all passed" : failures.size() + " failed"));
+	if (!failures.isEmpty()) {
+	    System.exit(1);
+	}
+    }
+}
@@ -0,0 +1,124 @@
+package server;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/***
+ * Time and allocation per operation for the paths we care about: payload
+ * encode/decode, Room.sendMessage fan-out, command parsing and room lookup. No
+ * dependencies, so it runs anywhere the server compiles:
+ * 
+ * <pre>
+ * javac -d out src/server/*.java bench/server/*.java
+ * java -cp out server.PathBenchmark
+ * </pre>
+ * 
+ * Each case runs a few untimed rounds first so the JIT settles, then reports
+ * the best of the timed rounds. Allocation comes from the HotSpot thread
+ * allocation counter, so it's exact for the measuring thread and zero means
+ * nothing was allocated.
+ * 
+ * The same cases run under JMH in bench/jmh, which is what to trust for
+ * comparisons:
+ * 
+ * <pre>
+ * mvn -B package
+ * java -jar bench/jmh/target/benchmarks.jar -prof gc
+ * </pre>
+ */
+public class PathBenchmark {
+    private final static com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+	    .getThreadMXBean();
+    private final static int WARMUP_ROUNDS = 5;
+    private final static int ROUNDS = 5;
+    private final static String TEXT = "hello everyone, how's it going?";
+    // results go here so the JIT can't drop the work
+    static long sink;
+
+    interface Op {
+	void run(int i) throws Exception;
+    }
+
+    /***
+     * Runs op ops times per round and prints ns and bytes allocated per op
+     */
+    static void measure(String name, int ops, Op op) throws Exception {
+	long tid = Thread.currentThread().getId();
+	double bestNanos = Double.MAX_VALUE;
+	double bytes = 0;
+	for (int round = 0; round < WARMUP_ROUNDS + ROUNDS; round++) {
+	    long allocated = threads.getThreadAllocatedBytes(tid);
+	    long start = System.nanoTime();
+	    for (int i = 0; i < ops; i++) {
+		op.run(i);
+	    }
+	    long nanos = System.nanoTime() - start;
+	    allocated = threads.getThreadAllocatedBytes(tid) - allocated;
+	    if (round >= WARMUP_ROUNDS && nanos / (double) ops < bestNanos) {
+		bestNanos = nanos / (double) ops;
+		bytes = allocated / (double) ops;
+	    }
+	}
+	System.out.printf("%-36s %12.1f %12.1f%n", name, bestNanos, bytes);
+    }
+
+    static void codecs() throws Exception {
+	Payload p = ServerThread.buildMessage("sender", TEXT);
+	p.setSequence(123456789L);
+	for (PayloadCodec codec : new PayloadCodec[] { Frames.BINARY, Frames.SERIALIZED }) {
+	    String label = codec == Frames.BINARY ? "binary" : "serialized";
+	    byte[] frame = codec.encode(p);
+	    measure("encode " + label, 200_000, i -> sink += codec.encode(p).length);
+	    measure("decode " + label, 200_000, i -> sink += codec
+		    .decode(frame, Frames.HEADER_SIZE, frame.length - Frames.HEADER_SIZE).getSequence());
+	}
+    }
+
+    static void fanOut() throws Exception {
+	for (int members : new int[] { 10, 100, 1_000, 10_000 }) {
+	    Room room = BroadcastBenchmark.room(members);
+	    ServerThread sender = room.getClients().get(0);
+	    measure("sendMessage fan-out " + members, Math.max(100, 1_000_000 / members),
+		    i -> room.sendMessage(sender, TEXT));
+	}
+    }
+
+    static void commands() throws Exception {
+	Room.registerCommand("bench", (room, client, args) -> sink += args.length());
+	Room room = BroadcastBenchmark.room(1);
+	ServerThread sender = room.getClients().get(0);
+	measure("processCommands command", 1_000_000, i -> sink += room.processCommands("/bench some args", sender) ? 1 : 0);
+	measure("processCommands unknown command", 1_000_000,
+		i -> sink += room.processCommands("/nosuchcommand", sender) ? 1 : 0);
+	measure("processCommands plain text", 1_000_000, i -> sink += room.processCommands(TEXT, sender) ? 1 : 0);
+    }
+
+    static void roomLookup() throws Exception {
+	for (int count : new int[] { 10, 1_000, 100_000 }) {
+	    SocketServer server = new SocketServer();
+	    String[] names = new String[count];
+	    for (int i = 0; i < count; i++) {
+		names[i] = "Room" + i;
+		server.createNewRoom(names[i]);
+	    }
+	    measure("getRoom " + count + " rooms", 1_000_000,
+		    i -> sink += server.getRoom(names[i % count]) != null ? 1 : 0);
+	}
+    }
+
+    public static void main(String[] args) throws Exception {
+	Logger.getLogger("server").setLevel(Level.WARNING);
+	Logger.getLogger("").setLevel(Level.WARNING);
+	if (!threads.isThreadAllocatedMemorySupported()) {
+	    throw new IOException("This JVM can't report allocation per thread");
+	}
+	System.out.printf("%-36s %12s %12s%n", "", "ns/op", "bytes/op");
+	codecs();
+	fanOut();
+	commands();
+	roomLookup();
+	System.out.println("checksum " + sink);
+    }
+}
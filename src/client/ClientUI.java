@@ -2,15 +2,11 @@ package client;
 
 import java.awt.BorderLayout;
 import java.awt.CardLayout;
-import java.awt.Component;
 import java.awt.Dimension;
-import java.awt.FontMetrics;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.KeyEvent;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -18,15 +14,15 @@ import java.util.logging.Logger;
 import javax.swing.AbstractAction;
 import javax.swing.BoxLayout;
 import javax.swing.JButton;
-import javax.swing.JEditorPane;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
+import javax.swing.JList;
 import javax.swing.JPanel;
-import javax.swing.JScrollBar;
 import javax.swing.JScrollPane;
 import javax.swing.JTextField;
 import javax.swing.KeyStroke;
 import javax.swing.ScrollPaneConstants;
+import javax.swing.SwingUtilities;
 
 public class ClientUI extends JFrame implements Event {
     /**
@@ -35,11 +31,12 @@ public class ClientUI extends JFrame implements Event {
     private static final long serialVersionUID = 1L;
     CardLayout card;
     ClientUI self;
-    JPanel textArea;
-    JPanel userPanel;
-    List<User> users = new ArrayList<User>();
+    Transcript transcript;
+    JList<String> userList;
+    final RosterModel roster = new RosterModel();
     private final static Logger log = Logger.getLogger(ClientUI.class.getName());
     Dimension windowSize = new Dimension(400, 400);
+    private final SocketClient client = new SocketClient();
 
     public ClientUI(String title) {
 	setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
@@ -106,7 +103,7 @@ public class ClientUI extends JFrame implements Event {
 	    public void actionPerformed(ActionEvent e) {
 		String name = username.getText();
 		if (name != null && name.length() > 0) {
-		    SocketClient.setUsername(name);
+		    client.setUsername(name);
 		    self.next();
 		}
 	    }
@@ -120,13 +117,8 @@ public class ClientUI extends JFrame implements Event {
 	JPanel panel = new JPanel();
 	panel.setLayout(new BorderLayout());
 
-	textArea = new JPanel();
-	textArea.setLayout(new BoxLayout(textArea, BoxLayout.Y_AXIS));
-	textArea.setAlignmentY(Component.BOTTOM_ALIGNMENT);
-	JScrollPane scroll = new JScrollPane(textArea);
-	scroll.setHorizontalScrollBarPolicy(ScrollPaneConstants.HORIZONTAL_SCROLLBAR_NEVER);
-	scroll.setVerticalScrollBarPolicy(ScrollPaneConstants.VERTICAL_SCROLLBAR_AS_NEEDED);
-	panel.add(scroll, BorderLayout.CENTER);
+	transcript = new Transcript();
+	panel.add(transcript.getScrollPane(), BorderLayout.CENTER);
 
 	JPanel input = new JPanel();
 	input.setLayout(new BoxLayout(input, BoxLayout.X_AXIS));
@@ -144,8 +136,14 @@ public class ClientUI extends JFrame implements Event {
 
 	    @Override
 	    public void actionPerformed(ActionEvent e) {
-		if (text.getText().length() > 0) {
-		    SocketClient.sendMessage(text.getText());
+		String message = text.getText();
+		if (message.length() > 0) {
+		    // queued, the EDT never waits on the network
+		    client.sendMessage(message).exceptionally(failure -> {
+			log.log(Level.WARNING, "Failed to send " + message, failure);
+			SwingUtilities.invokeLater(() -> self.addMessage("(not sent) " + message));
+			return null;
+		    });
 		    text.setText("");
 		}
 	    }
@@ -157,76 +155,23 @@ public class ClientUI extends JFrame implements Event {
     }
 
     void createPanelUserList() {
-	userPanel = new JPanel();
-	userPanel.setLayout(new BoxLayout(userPanel, BoxLayout.Y_AXIS));
-	userPanel.setAlignmentY(Component.TOP_ALIGNMENT);
+	userList = new JList<String>(roster);
+	userList.setFocusable(false);
+	// every row is the same height, so the list never measures the names
+	userList.setPrototypeCellValue("XXXXXXXXXXXX");
 
-	JScrollPane scroll = new JScrollPane(userPanel);
+	JScrollPane scroll = new JScrollPane(userList);
 	scroll.setHorizontalScrollBarPolicy(ScrollPaneConstants.HORIZONTAL_SCROLLBAR_NEVER);
 	scroll.setVerticalScrollBarPolicy(ScrollPaneConstants.VERTICAL_SCROLLBAR_AS_NEEDED);
 
 	Dimension d = new Dimension(100, windowSize.height);
 	scroll.setPreferredSize(d);
 
-	textArea.getParent().getParent().getParent().add(scroll, BorderLayout.EAST);
-    }
-
-    void addClient(String name) {
-	User u = new User(name);
-	Dimension p = new Dimension(userPanel.getSize().width, 30);
-	u.setPreferredSize(p);
-	u.setMinimumSize(p);
-	u.setMaximumSize(p);
-	userPanel.add(u);
-	users.add(u);
-	pack();
-    }
-
-    void removeClient(User client) {
-	userPanel.remove(client);
-	client.removeAll();
-	userPanel.revalidate();
-	userPanel.repaint();
-    }
-
-    /***
-     * Attempts to calculate the necessary dimensions for a potentially wrapped
-     * string of text. This isn't perfect and some extra whitespace above or below
-     * the text may occur
-     * 
-     * @param str
-     * @return
-     */
-    int calcHeightForText(String str) {
-	FontMetrics metrics = self.getGraphics().getFontMetrics(self.getFont());
-	int hgt = metrics.getHeight();
-	int adv = metrics.stringWidth(str);
-	final int PIXEL_PADDING = 6;
-	Dimension size = new Dimension(adv, hgt + PIXEL_PADDING);
-	final float PADDING_PERCENT = 1.1f;
-	// calculate modifier to line wrapping so we can display the wrapped message
-	int mult = (int) Math.floor(size.width / (textArea.getSize().width * PADDING_PERCENT));
-	// System.out.println(mult);
-	mult++;
-	return size.height * mult;
+	transcript.getScrollPane().getParent().add(scroll, BorderLayout.EAST);
     }
 
     void addMessage(String str) {
-	JEditorPane entry = new JEditorPane();
-	entry.setEditable(false);
-	// entry.setLayout(null);
-	entry.setText(str);
-	Dimension d = new Dimension(textArea.getSize().width, calcHeightForText(str));
-	// attempt to lock all dimensions
-	entry.setMinimumSize(d);
-	entry.setPreferredSize(d);
-	entry.setMaximumSize(d);
-	textArea.add(entry);
-
-	pack();
-	System.out.println(entry.getSize());
-	JScrollBar sb = ((JScrollPane) textArea.getParent().getParent()).getVerticalScrollBar();
-	sb.setValue(sb.getMaximum());
+	transcript.append(str);
     }
 
     void next() {
@@ -238,23 +183,22 @@ public class ClientUI extends JFrame implements Event {
     }
 
     void connect(String host, String port) throws IOException {
-	SocketClient.callbackListener(this);
-	SocketClient.connectAndStart(host, port);
+	// callbacks arrive on the network thread, this hands them to the EDT
+	client.callbackListener(new EdtDispatcher(this));
+	client.connectAndStart(host, port);
     }
 
     void showUI() {
 	pack();
-	Dimension lock = textArea.getSize();
-	textArea.setMaximumSize(lock);
-	lock = userPanel.getSize();
-	userPanel.setMaximumSize(lock);
 	setVisible(true);
     }
 
     @Override
     public void onClientConnect(String clientName, String message) {
-	log.log(Level.INFO, String.format("%s: %s", clientName, message));
-	addClient(clientName);
+	if (log.isLoggable(Level.FINE)) {
+	    log.log(Level.FINE, String.format("%s: %s", clientName, message));
+	}
+	roster.add(clientName);
 	if (message != null && !message.isBlank()) {
 	    self.addMessage(String.format("%s: %s", clientName, message));
 	}
@@ -262,34 +206,31 @@ public class ClientUI extends JFrame implements Event {
 
     @Override
     public void onClientDisconnect(String clientName, String message) {
-	log.log(Level.INFO, String.format("%s: %s", clientName, message));
-	Iterator<User> iter = users.iterator();
-	while (iter.hasNext()) {
-	    User u = iter.next();
-	    if (u.getName() == clientName) {
-		removeClient(u);
-		iter.remove();
-		self.addMessage(String.format("%s: %s", clientName, message));
-		break;
-	    }
-
+	if (log.isLoggable(Level.FINE)) {
+	    log.log(Level.FINE, String.format("%s: %s", clientName, message));
+	}
+	if (roster.remove(clientName)) {
+	    self.addMessage(String.format("%s: %s", clientName, message));
 	}
     }
 
     @Override
     public void onMessageReceive(String clientName, String message) {
-	log.log(Level.INFO, String.format("%s: %s", clientName, message));
+	if (log.isLoggable(Level.FINE)) {
+	    log.log(Level.FINE, String.format("%s: %s", clientName, message));
+	}
 	self.addMessage(String.format("%s: %s", clientName, message));
     }
 
     @Override
     public void onChangeRoom() {
-	Iterator<User> iter = users.iterator();
-	while (iter.hasNext()) {
-	    User u = iter.next();
-	    removeClient(u);
-	    iter.remove();
-	}
+	roster.clear();
+    }
+
+    @Override
+    public void onRoster(List<String> clientNames) {
+	// one update for the whole room instead of one per name
+	roster.replaceAll(clientNames);
     }
 
     public static void main(String[] args) {
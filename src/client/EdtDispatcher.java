@@ -0,0 +1,78 @@
+package client;
+
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.swing.SwingUtilities;
+
+/***
+ * Moves Event callbacks from the network thread onto the EDT. Callbacks are
+ * queued as they arrive and run in batches: at most one drain is scheduled at
+ * a time, and each one runs for up to about half a frame before handing the
+ * EDT back to painting and input, so a busy room can't starve the UI.
+ */
+class EdtDispatcher implements Event {
+    // half a 60Hz frame
+    private final static long BATCH_NANOS = 8_000_000;
+    private final Event target;
+    private final Queue<Runnable> pending = new ConcurrentLinkedQueue<Runnable>();
+    private final AtomicBoolean isScheduled = new AtomicBoolean();
+
+    /***
+     * @param target gets the callbacks on the EDT
+     */
+    EdtDispatcher(Event target) {
+	this.target = target;
+    }
+
+    private void dispatch(Runnable callback) {
+	pending.add(callback);
+	if (isScheduled.compareAndSet(false, true)) {
+	    SwingUtilities.invokeLater(this::drain);
+	}
+    }
+
+    private void drain() {
+	long deadline = System.nanoTime() + BATCH_NANOS;
+	Runnable r;
+	while ((r = pending.poll()) != null) {
+	    r.run();
+	    if (System.nanoTime() - deadline > 0) {
+		break;
+	    }
+	}
+	isScheduled.set(false);
+	// anything left over, or added after the poll came back empty, gets its
+	// own batch
+	if (!pending.isEmpty() && isScheduled.compareAndSet(false, true)) {
+	    SwingUtilities.invokeLater(this::drain);
+	}
+    }
+
+    @Override
+    public void onClientConnect(String clientName, String message) {
+	dispatch(() -> target.onClientConnect(clientName, message));
+    }
+
+    @Override
+    public void onClientDisconnect(String clientName, String message) {
+	dispatch(() -> target.onClientDisconnect(clientName, message));
+    }
+
+    @Override
+    public void onMessageReceive(String clientName, String message) {
+	dispatch(() -> target.onMessageReceive(clientName, message));
+    }
+
+    @Override
+    public void onChangeRoom() {
+	dispatch(target::onChangeRoom);
+    }
+
+    @Override
+    public void onRoster(List<String> clientNames) {
+	dispatch(() -> target.onRoster(clientNames));
+    }
+}
@@ -1,5 +1,7 @@
 package client;
 
+import java.util.List;
+
 public interface Event {
     void onClientConnect(String clientName, String message);
 
@@ -8,4 +10,18 @@ public interface Event {
     void onMessageReceive(String clientName, String message);
 
     void onChangeRoom();
+
+    /***
+     * Everyone already in the room we just joined, sent right after joining.
+     * Listeners that can take the whole list at once should override this;
+     * the default replays it as onChangeRoom and one onClientConnect per name.
+     * 
+     * @param clientNames
+     */
+    default void onRoster(List<String> clientNames) {
+	onChangeRoom();
+	for (String name : clientNames) {
+	    onClientConnect(name, null);
+	}
+    }
 }
\ No newline at end of file
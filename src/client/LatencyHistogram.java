@@ -0,0 +1,89 @@
+package client;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/***
+ * Log-linear histogram in the style of HdrHistogram: every power of two range
+ * is split into SUB_BUCKETS equal buckets, so any recorded value is reported
+ * within about 3% while the whole long range fits in under 2k counters.
+ * Recording is lock free and safe from any number of threads.
+ */
+public class LatencyHistogram {
+    private final static int SUB_BITS = 5;
+    private final static int SUB_BUCKETS = 1 << SUB_BITS;
+    // values below SUB_BUCKETS get a bucket each, then SUB_BUCKETS per power of two
+    private final static int BUCKETS = SUB_BUCKETS + (63 - SUB_BITS) * SUB_BUCKETS;
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder total = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+
+    static int index(long value) {
+	if (value < SUB_BUCKETS) {
+	    return (int) Math.max(0, value);
+	}
+	int exponent = 63 - Long.numberOfLeadingZeros(value);
+	int shift = exponent - SUB_BITS;
+	return SUB_BUCKETS + shift * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    /***
+     * @return the smallest value that lands in the bucket
+     */
+    static long lowestValue(int index) {
+	if (index < SUB_BUCKETS) {
+	    return index;
+	}
+	int shift = (index - SUB_BUCKETS) / SUB_BUCKETS;
+	int sub = (index - SUB_BUCKETS) % SUB_BUCKETS;
+	return (long) (SUB_BUCKETS + sub) << shift;
+    }
+
+    /***
+     * @param value e.g. nanoseconds, negative values count as 0
+     */
+    public void record(long value) {
+	counts.incrementAndGet(index(value));
+	total.increment();
+	sum.add(Math.max(0, value));
+    }
+
+    public long getCount() {
+	return total.sum();
+    }
+
+    public double getMean() {
+	long n = total.sum();
+	return n == 0 ? 0 : sum.sum() / (double) n;
+    }
+
+    /***
+     * @param percentile 0 to 100
+     * @return the highest value that could be in the bucket holding that
+     *         percentile, 0 if nothing was recorded
+     */
+    public long getValueAtPercentile(double percentile) {
+	long[] snapshot = new long[BUCKETS];
+	long n = 0;
+	for (int i = 0; i < BUCKETS; i++) {
+	    snapshot[i] = counts.get(i);
+	    n += snapshot[i];
+	}
+	if (n == 0) {
+	    return 0;
+	}
+	long rank = Math.max(1, (long) Math.ceil(percentile / 100 * n));
+	long seen = 0;
+	for (int i = 0; i < BUCKETS; i++) {
+	    seen += snapshot[i];
+	    if (seen >= rank) {
+		return i + 1 < BUCKETS ? lowestValue(i + 1) - 1 : Long.MAX_VALUE;
+	    }
+	}
+	return Long.MAX_VALUE;
+    }
+
+    public long getMax() {
+	return getValueAtPercentile(100);
+    }
+}
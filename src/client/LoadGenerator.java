@@ -0,0 +1,178 @@
+package client;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/***
+ * Headless load test: opens many simulated users against a server, spreads
+ * them over rooms and has them chat, reporting throughput and end-to-end
+ * latency as it goes.
+ * 
+ * <pre>
+ * java -Dload.users=2000 -Dload.rooms=20 -Dload.rate=1 -Dload.seconds=30 \
+ *     -cp out client.LoadGenerator 127.0.0.1 3000
+ * </pre>
+ * 
+ * load.users simulated users (default 100), load.rooms rooms they're split
+ * over (default 10, 0 keeps everyone in the Lobby), load.rate messages per
+ * second per user (default 1), load.seconds how long to chat for (default 30)
+ * and load.connectRate new connections per second (default 500).
+ * 
+ * Every message carries the time it was sent, and since senders and receivers
+ * share this JVM's clock the latency recorded is the full trip through the
+ * server to each member.
+ */
+public class LoadGenerator {
+    private final static Logger log = Logger.getLogger(LoadGenerator.class.getName());
+    // marks our messages and carries System.nanoTime() at send
+    private final static String TAG = "lg ";
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder received = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final List<SocketClient> users = new ArrayList<SocketClient>();
+
+    /***
+     * Records our own messages, ignores everything else
+     */
+    private class Listener implements Event {
+	@Override
+	public void onClientConnect(String clientName, String message) {
+	}
+
+	@Override
+	public void onClientDisconnect(String clientName, String message) {
+	}
+
+	@Override
+	public void onMessageReceive(String clientName, String message) {
+	    if (message != null && message.startsWith(TAG)) {
+		try {
+		    latency.record(System.nanoTime() - Long.parseLong(message.substring(TAG.length())));
+		    received.increment();
+		}
+		catch (NumberFormatException e) {
+		    // someone else's message that happens to look like ours
+		}
+	    }
+	}
+
+	@Override
+	public void onChangeRoom() {
+	}
+    }
+
+    private void connect(String host, String port, int count, int perSecond) throws InterruptedException {
+	long start = System.nanoTime();
+	Listener listener = new Listener();
+	for (int i = 0; i < count; i++) {
+	    SocketClient c = new SocketClient();
+	    c.callbackListener(listener);
+	    try {
+		if (c.connectAndStart(host, port)) {
+		    c.setUsername("user" + i);
+		    users.add(c);
+		}
+	    }
+	    catch (IOException e) {
+		log.log(Level.WARNING, "Connect failed", e);
+	    }
+	    // pace connections instead of storming the accept queue
+	    long due = start + (i + 1) * 1_000_000_000L / perSecond;
+	    long wait = due - System.nanoTime();
+	    if (wait > 0) {
+		TimeUnit.NANOSECONDS.sleep(wait);
+	    }
+	}
+	System.out.printf("%d/%d users connected in %.1fs%n", users.size(), count,
+		(System.nanoTime() - start) / 1e9);
+    }
+
+    /***
+     * The first user for each room creates it, everyone else joins afterwards
+     */
+    private void joinRooms(int rooms) throws InterruptedException {
+	if (rooms <= 0) {
+	    return;
+	}
+	for (int i = 0; i < Math.min(rooms, users.size()); i++) {
+	    users.get(i).sendMessage("/createroom load" + i);
+	}
+	Thread.sleep(500);
+	for (int i = rooms; i < users.size(); i++) {
+	    users.get(i).sendMessage("/joinroom load" + (i % rooms));
+	}
+	// let the roster and presence traffic settle before measuring
+	Thread.sleep(1000);
+    }
+
+    private void chat(double rate, int seconds) throws InterruptedException {
+	ScheduledExecutorService timer = Executors.newScheduledThreadPool(
+		Math.max(1, Runtime.getRuntime().availableProcessors() / 2), r -> {
+		    Thread t = new Thread(r, "load-timer");
+		    t.setDaemon(true);
+		    return t;
+		});
+	long period = Math.max(1, (long) (1_000_000 / rate));
+	for (SocketClient c : users) {
+	    // random phase so users don't all send on the same tick
+	    long phase = ThreadLocalRandom.current().nextLong(period);
+	    timer.scheduleAtFixedRate(() -> {
+		c.sendMessage(TAG + System.nanoTime()).whenComplete((ok, failure) -> {
+		    if (failure != null) {
+			failed.increment();
+		    }
+		});
+		sent.increment();
+	    }, phase, period, TimeUnit.MICROSECONDS);
+	}
+	long lastSent = 0;
+	long lastReceived = 0;
+	System.out.println("  sec     sent/s     recv/s      p50(ms)      p99(ms)    p99.9(ms)      max(ms)");
+	for (int s = 1; s <= seconds; s++) {
+	    Thread.sleep(1000);
+	    long nowSent = sent.sum();
+	    long nowReceived = received.sum();
+	    System.out.printf("%5d %10d %10d %12.2f %12.2f %12.2f %12.2f%n", s, nowSent - lastSent,
+		    nowReceived - lastReceived, latency.getValueAtPercentile(50) / 1e6,
+		    latency.getValueAtPercentile(99) / 1e6, latency.getValueAtPercentile(99.9) / 1e6,
+		    latency.getMax() / 1e6);
+	    lastSent = nowSent;
+	    lastReceived = nowReceived;
+	}
+	timer.shutdownNow();
+	// give in flight messages a moment to land
+	Thread.sleep(500);
+	System.out.printf("sent %d (%d failed), received %d (%.0f/s), latency mean %.2fms p50 %.2fms p90 %.2fms p99 %.2fms "
+		+ "p99.9 %.2fms max %.2fms%n", sent.sum(), failed.sum(), received.sum(), received.sum() / (double) seconds,
+		latency.getMean() / 1e6, latency.getValueAtPercentile(50) / 1e6,
+		latency.getValueAtPercentile(90) / 1e6, latency.getValueAtPercentile(99) / 1e6,
+		latency.getValueAtPercentile(99.9) / 1e6, latency.getMax() / 1e6);
+    }
+
+    private void close() {
+	for (SocketClient c : users) {
+	    c.close();
+	}
+    }
+
+    public static void main(String[] args) throws Exception {
+	String host = args.length > 0 ? args[0] : "127.0.0.1";
+	String port = args.length > 1 ? args[1] : "3000";
+	// thousands of clients logging each connect would be the bottleneck
+	Logger.getLogger(SocketClient.class.getName()).setLevel(Level.WARNING);
+	LoadGenerator load = new LoadGenerator();
+	load.connect(host, port, Integer.getInteger("load.users", 100), Integer.getInteger("load.connectRate", 500));
+	load.joinRooms(Integer.getInteger("load.rooms", 10));
+	load.chat(Double.parseDouble(System.getProperty("load.rate", "1")), Integer.getInteger("load.seconds", 30));
+	load.close();
+    }
+}
@@ -0,0 +1,104 @@
+package client;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.swing.AbstractListModel;
+
+/***
+ * Names of the people in the current room. A hash index keyed by name makes
+ * add, remove and contains O(1): a removed name's slot is filled with the last
+ * name instead of shifting everything after it, so the order isn't kept.
+ * Changes fire the smallest list event that covers them, so a JList only
+ * repaints what moved.
+ * 
+ * Must only be used on the EDT.
+ */
+class RosterModel extends AbstractListModel<String> {
+    private static final long serialVersionUID = 1L;
+    private final List<String> names = new ArrayList<String>();
+    // name to its position in names
+    private final Map<String, Integer> index = new HashMap<String, Integer>();
+
+    @Override
+    public int getSize() {
+	return names.size();
+    }
+
+    @Override
+    public String getElementAt(int i) {
+	return names.get(i);
+    }
+
+    boolean contains(String name) {
+	return index.containsKey(name);
+    }
+
+    /***
+     * @param name
+     * @return false if the name was already there
+     */
+    boolean add(String name) {
+	if (name == null || index.containsKey(name)) {
+	    return false;
+	}
+	index.put(name, names.size());
+	names.add(name);
+	fireIntervalAdded(this, names.size() - 1, names.size() - 1);
+	return true;
+    }
+
+    /***
+     * @param name
+     * @return false if the name wasn't there
+     */
+    boolean remove(String name) {
+	Integer i = index.remove(name);
+	if (i == null) {
+	    return false;
+	}
+	int last = names.size() - 1;
+	String moved = names.remove(last);
+	if (i != last) {
+	    names.set(i, moved);
+	    index.put(moved, i);
+	    fireContentsChanged(this, i, i);
+	}
+	fireIntervalRemoved(this, last, last);
+	return true;
+    }
+
+    /***
+     * Replaces everyone with a room's roster as a single change
+     * 
+     * @param snapshot
+     */
+    void replaceAll(Collection<String> snapshot) {
+	int before = names.size();
+	names.clear();
+	index.clear();
+	for (String name : snapshot) {
+	    if (name != null && !index.containsKey(name)) {
+		index.put(name, names.size());
+		names.add(name);
+	    }
+	}
+	int after = names.size();
+	if (before > after) {
+	    fireIntervalRemoved(this, after, before - 1);
+	}
+	if (after > before) {
+	    fireIntervalAdded(this, before, after - 1);
+	}
+	if (Math.min(before, after) > 0) {
+	    fireContentsChanged(this, 0, Math.min(before, after) - 1);
+	}
+    }
+
+    void clear() {
+	replaceAll(new ArrayList<String>());
+    }
+}
\ No newline at end of file
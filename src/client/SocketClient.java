@@ -1,27 +1,79 @@
 package client;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import server.Frames;
 import server.Payload;
 import server.PayloadType;
+import server.Threads;
 
 //part 7
+/***
+ * One connection to the server. Each instance is its own user, so a process
+ * can run as many as it likes (see LoadGenerator).
+ * 
+ * Sending never touches the network on the caller's thread: payloads are
+ * queued and a writer thread per connection sends them, flushing once per
+ * batch. The returned futures complete (on the writer thread) once the payload
+ * has been written to the socket, or exceptionally if it couldn't be.
+ * 
+ * If the connection drops the client reconnects on its own, waiting a random
+ * time under an exponentially growing limit ("full jitter") so a server restart
+ * doesn't get every client back at the same instant. With the resume token the
+ * server handed out it's put back in its room and sent what it missed.
+ */
 public class SocketClient {
-    private static Socket server;
-    private static Thread fromServerThread;
-    private static Thread clientThread;
-    private static String clientName;
-    private static ObjectOutputStream out;
+    private Socket server;
+    // where we're connected, kept for reconnecting
+    private String host;
+    private int port;
+    private Thread fromServerThread;
+    private Thread clientThread;
+    private String clientName;
+    private volatile DataOutputStream out;
+    private Thread writerThread;
+    private volatile boolean isRunning = false;
+    // -Dclient.sendQueue bounds how far sends can get ahead of the network
+    private final static int SEND_QUEUE = Integer.getInteger("client.sendQueue", 1024);
+    private final static int MAX_BATCH = 64;
+    private final BlockingQueue<Outgoing> outgoing = new ArrayBlockingQueue<Outgoing>(SEND_QUEUE);
     private final static Logger log = Logger.getLogger(SocketClient.class.getName());
-    private static Event event;
+    private Event event;
+    // set when the server hands us to another node, see PayloadType.REDIRECT
+    private volatile String redirectAddress;
+    private volatile String redirectCommand;
+    // see PayloadType.RESUME
+    private volatile String resumeToken;
+    // newest message we've seen in the current room
+    private volatile long lastSequence;
+    // set by close(), stops reconnecting
+    private volatile boolean isClosed = false;
+    // -Dclient.reconnectBaseMillis and -Dclient.reconnectMaxMillis bound the
+    // waits between attempts, -Dclient.reconnectAttempts how many before giving up
+    private final static long RECONNECT_BASE_MILLIS = Long.getLong("client.reconnectBaseMillis", 250);
+    private final static long RECONNECT_MAX_MILLIS = Long.getLong("client.reconnectMaxMillis", 30000);
+    private final static int RECONNECT_ATTEMPTS = Integer.getInteger("client.reconnectAttempts", 10);
+    // -Dclient.virtualThreads=true runs the listener threads as virtual threads
+    private final static ThreadFactory threads = Threads.factory("SocketClient-",
+	    Boolean.getBoolean("client.virtualThreads"));
 
-    private static Payload buildMessage(String message) {
+    private Payload buildMessage(String message) {
 	Payload payload = new Payload();
 	payload.setPayloadType(PayloadType.MESSAGE);
 	payload.setClientName(clientName);
@@ -41,30 +93,114 @@ public class SocketClient {
 	return payload;
     }
 
-    private static void sendPayload(Payload p) {
-	try {
-	    out.writeObject(p);
+    private Payload buildResume() {
+	Payload payload = new Payload();
+	payload.setPayloadType(PayloadType.RESUME);
+	payload.setClientName(clientName);
+	payload.setMessage(resumeToken);
+	payload.setSequence(lastSequence);
+	return payload;
+    }
+
+    private static class Outgoing {
+	final Payload payload;
+	final CompletableFuture<Void> sent = new CompletableFuture<Void>();
+
+	Outgoing(Payload payload) {
+	    this.payload = payload;
 	}
-	catch (IOException e) {
-	    // TODO Auto-generated catch block
-	    e.printStackTrace();
+    }
+
+    /***
+     * Queues a payload for the writer thread, never blocks
+     * 
+     * @param p
+     * @return completes once written, fails if the queue is full or the write
+     *         fails
+     */
+    private CompletableFuture<Void> sendPayload(Payload p) {
+	Outgoing o = new Outgoing(p);
+	if (!outgoing.offer(o)) {
+	    o.sent.completeExceptionally(new IOException("Send queue is full"));
 	}
+	return o.sent;
     }
 
-    private static void listenForServerMessage(ObjectInputStream in) {
+    /***
+     * Writes queued payloads until the client stops. Everything queued at once
+     * goes out with one flush.
+     */
+    private void writeLoop() {
+	List<Outgoing> batch = new ArrayList<Outgoing>(MAX_BATCH);
+	while (isRunning || !outgoing.isEmpty()) {
+	    try {
+		Outgoing first = outgoing.poll(100, TimeUnit.MILLISECONDS);
+		if (first == null) {
+		    continue;
+		}
+		batch.add(first);
+		outgoing.drainTo(batch, MAX_BATCH - 1);
+	    }
+	    catch (InterruptedException e) {
+		break;
+	    }
+	    DataOutputStream o = out;
+	    List<Outgoing> written = new ArrayList<Outgoing>(batch.size());
+	    try {
+		if (o == null) {
+		    throw new IOException("Not connected");
+		}
+		for (Outgoing item : batch) {
+		    byte[] frame;
+		    try {
+			frame = Frames.encode(item.payload);
+		    }
+		    catch (IOException e) {
+			// just this one can't be sent
+			item.sent.completeExceptionally(e);
+			continue;
+		    }
+		    o.write(frame);
+		    written.add(item);
+		}
+		o.flush();
+		for (Outgoing item : written) {
+		    item.sent.complete(null);
+		}
+	    }
+	    catch (IOException e) {
+		for (Outgoing item : batch) {
+		    item.sent.completeExceptionally(e);
+		}
+	    }
+	    batch.clear();
+	}
+	// stopped, nothing else will be written
+	Outgoing left;
+	while ((left = outgoing.poll()) != null) {
+	    left.sent.completeExceptionally(new IOException("Client closed"));
+	}
+    }
+
+    private void listenForServerMessage(DataInputStream in) {
 	if (fromServerThread != null) {
 	    log.log(Level.INFO, "Server Listener is likely already running");
 	    return;
 	}
 	// Thread to listen for responses from server so it doesn't block main thread
-	fromServerThread = new Thread() {
+	fromServerThread = threads.newThread(new Runnable() {
 	    @Override
 	    public void run() {
 		try {
-		    Payload fromServer;
+		    byte[] body = new byte[256];
 		    // while we're connected, listen for Payloads from server
-		    while (!server.isClosed() && (fromServer = (Payload) in.readObject()) != null) {
-			processPayload(fromServer);
+		    while (!server.isClosed()) {
+			int length = Frames.checkLength(in.readInt());
+			if (body.length < length) {
+			    body = new byte[Math.max(length, body.length * 2)];
+			}
+			in.readFully(body, 0, length);
+			processPayload(Frames.decode(body, 0, length));
 		    }
 		}
 		catch (Exception e) {
@@ -77,11 +213,11 @@ public class SocketClient {
 		    }
 		}
 		finally {
-		    close();
+		    closeSocket();
 		    log.log(Level.INFO, "Stopped listening to server input");
 		}
 	    }
-	};
+	});
 	fromServerThread.start();// start the thread
     }
 
@@ -90,7 +226,7 @@ public class SocketClient {
      * 
      * @param p
      */
-    private static void processPayload(Payload p) {
+    private void processPayload(Payload p) {
 
 	switch (p.getPayloadType()) {
 	case CONNECT:
@@ -104,6 +240,9 @@ public class SocketClient {
 	    }
 	    break;
 	case MESSAGE:
+	    if (p.getSequence() > lastSequence) {
+		lastSequence = p.getSequence();
+	    }
 	    if (event != null) {
 		event.onMessageReceive(p.getClientName(), p.getMessage());
 	    }
@@ -113,6 +252,48 @@ public class SocketClient {
 		event.onChangeRoom();
 	    }
 	    break;
+	case ROSTER:
+	    // everyone already in the room we just joined, and where its message
+	    // count picks up
+	    lastSequence = p.getSequence();
+	    if (event != null) {
+		event.onRoster(p.getClientNames());
+	    }
+	    break;
+	case JOINED:
+	    if (event != null) {
+		for (String name : p.getClientNames()) {
+		    event.onClientConnect(name, p.getMessage());
+		}
+	    }
+	    break;
+	case LEFT:
+	    if (event != null) {
+		for (String name : p.getClientNames()) {
+		    event.onClientDisconnect(name, p.getMessage());
+		}
+	    }
+	    break;
+	case REDIRECT:
+	    // the client thread reconnects once this connection is closed
+	    String target = p.getMessage();
+	    int space = target.indexOf(' ');
+	    redirectCommand = space < 0 ? null : target.substring(space + 1);
+	    redirectAddress = space < 0 ? target : target.substring(0, space);
+	    log.log(Level.INFO, "Redirected to " + redirectAddress);
+	    closeSocket();
+	    break;
+	case RESUME:
+	    resumeToken = p.getMessage();
+	    break;
+	case PING:
+	    // the server drops clients that stay quiet
+	    Payload pong = new Payload();
+	    pong.setPayloadType(PayloadType.PONG);
+	    sendPayload(pong);
+	    break;
+	case PONG:
+	    break;
 	default:
 	    log.log(Level.WARNING, "unhandled payload on client" + p);
 	    break;
@@ -121,23 +302,21 @@ public class SocketClient {
     }
 
     // TODO Start public methods here
-    public static void callbackListener(Event e) {
+    public void callbackListener(Event e) {
 	event = e;
 	log.log(Level.INFO, "Attached listener");
     }
 
-    public static boolean connectAndStart(String address, String port) throws IOException {
+    public boolean connectAndStart(String address, String port) throws IOException {
 	if (connect(address, port)) {
 	    return start();
 	}
 	return false;
     }
 
-    public static boolean connect(String address, String port) {
+    public boolean connect(String address, String port) {
 	try {
-	    server = new Socket(address, Integer.parseInt(port));
-	    log.log(Level.INFO, "Client connected");
-	    return true;
+	    return connect(address, Integer.parseInt(port), null);
 	}
 	catch (UnknownHostException e) {
 	    e.printStackTrace();
@@ -148,16 +327,93 @@ public class SocketClient {
 	return false;
     }
 
-    public static void setUsername(String username) {
+    /***
+     * @param address
+     * @param port
+     * @param hello   if not null it's written before anything queued can be
+     * @return
+     * @throws IOException
+     */
+    private boolean connect(String address, int port, Payload hello) throws IOException {
+	Socket socket = new Socket(address, port);
+	DataOutputStream o = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+	if (hello != null) {
+	    try {
+		o.write(Frames.encode(hello));
+		o.flush();
+	    }
+	    catch (IOException e) {
+		socket.close();
+		throw e;
+	    }
+	}
+	host = address;
+	this.port = port;
+	server = socket;
+	out = o;
+	log.log(Level.INFO, "Client connected");
+	return true;
+    }
+
+    /***
+     * Tries to get back to the server after the connection dropped, resuming our
+     * session if we have one. Attempt n waits a random time up to
+     * min(max, base * 2^n).
+     * 
+     * @return false if it gave up or the client was closed
+     */
+    private boolean reconnect() {
+	for (int attempt = 0; attempt < RECONNECT_ATTEMPTS && !isClosed; attempt++) {
+	    long limit = Math.min(RECONNECT_MAX_MILLIS, RECONNECT_BASE_MILLIS << Math.min(attempt, 30));
+	    long delay = ThreadLocalRandom.current().nextLong(limit + 1);
+	    log.log(Level.INFO, "Reconnecting in " + delay + "ms");
+	    try {
+		Thread.sleep(delay);
+	    }
+	    catch (InterruptedException e) {
+		return false;
+	    }
+	    if (isClosed) {
+		break;
+	    }
+	    Payload hello = null;
+	    if (resumeToken != null) {
+		hello = buildResume();
+	    }
+	    else if (clientName != null) {
+		hello = buildConnectionStatus(clientName, true);
+	    }
+	    try {
+		return connect(host, port, hello);
+	    }
+	    catch (IOException e) {
+		log.log(Level.INFO, "Reconnect attempt " + (attempt + 1) + " failed: " + e.getMessage());
+	    }
+	}
+	return false;
+    }
+
+    /***
+     * @param username
+     * @return completes once the CONNECT has been written
+     */
+    public CompletableFuture<Void> setUsername(String username) {
 	clientName = username;
-	sendPayload(buildConnectionStatus(clientName, true));
+	return sendPayload(buildConnectionStatus(clientName, true));
     }
 
-    public static void sendMessage(String message) {
-	sendPayload(buildMessage(message));
+    /***
+     * Queues a chat message or command, safe to call from any thread including
+     * the EDT
+     * 
+     * @param message
+     * @return completes once the message has been written
+     */
+    public CompletableFuture<Void> sendMessage(String message) {
+	return sendPayload(buildMessage(message));
     }
 
-    public static boolean start() throws IOException {
+    public boolean start() throws IOException {
 	if (server == null) {
 	    log.log(Level.WARNING, "Server is null");
 	    return false;
@@ -171,39 +427,70 @@ public class SocketClient {
 	    clientThread = null;
 	}
 	log.log(Level.INFO, "Client Started");
-	clientThread = new Thread() {
+	isRunning = true;
+	writerThread = threads.newThread(this::writeLoop);
+	writerThread.start();
+	clientThread = threads.newThread(new Runnable() {
 	    @Override
 	    public void run() {
 
 		// listen to console, server in, and write to server out
-		try (ObjectOutputStream out = new ObjectOutputStream(server.getOutputStream());
-			ObjectInputStream in = new ObjectInputStream(server.getInputStream());) {
-		    SocketClient.out = out;
+		// loops again for each redirect to another node
+		while (server != null) {
+		    // out was opened by connect(), closing the socket closes both
+		    try (DataInputStream in = new DataInputStream(new BufferedInputStream(server.getInputStream()));) {
+			String command = redirectCommand;
+			if (command != null) {
+			    // new node, introduce ourselves then repeat what sent us here
+			    redirectCommand = null;
+			    sendPayload(buildConnectionStatus(clientName, true));
+			    sendPayload(buildMessage(command));
+			}
 
-		    // starts new thread
-		    listenForServerMessage(in);
+			// starts new thread
+			listenForServerMessage(in);
 
-		    // Keep main thread alive until the socket is closed
-		    // initialize/do everything before this line
-		    // (Without this line the program would stop after the first message
-		    while (!server.isClosed()) {
-			Thread.sleep(50);
+			// Keep main thread alive until the listener finishes (socket closed)
+			// initialize/do everything before this line
+			// (Without this line the program would stop after the first message
+			fromServerThread.join();
+			fromServerThread = null;
+			log.log(Level.INFO, "Client Thread stopping");
+		    }
+		    catch (Exception e) {
+			e.printStackTrace();
+		    }
+		    finally {
+			closeSocket();
+		    }
+		    String address = redirectAddress;
+		    redirectAddress = null;
+		    if (address != null) {
+			int colon = address.lastIndexOf(':');
+			if (colon < 0 || !connect(address.substring(0, colon), address.substring(colon + 1))) {
+			    break;
+			}
+		    }
+		    else if (isClosed || !reconnect()) {
+			break;
 		    }
-		    log.log(Level.INFO, "Client Thread stopping");
-		}
-		catch (Exception e) {
-		    e.printStackTrace();
-		}
-		finally {
-		    close();
 		}
+		isRunning = false;
 	    }
-	};
+	});
 	clientThread.start();
 	return true;
     }
 
-    public static void close() {
+    /***
+     * Disconnects for good, no reconnecting
+     */
+    public void close() {
+	isClosed = true;
+	closeSocket();
+    }
+
+    private void closeSocket() {
 	if (server != null && !server.isClosed()) {
 	    try {
 		server.close();
@@ -0,0 +1,230 @@
+package client;
+
+import java.awt.Component;
+import java.awt.Dimension;
+import java.awt.Graphics;
+import java.awt.Rectangle;
+import java.awt.event.ComponentAdapter;
+import java.awt.event.ComponentEvent;
+import java.util.Arrays;
+
+import javax.swing.AbstractListModel;
+import javax.swing.BorderFactory;
+import javax.swing.JList;
+import javax.swing.JScrollBar;
+import javax.swing.JScrollPane;
+import javax.swing.JTextArea;
+import javax.swing.ListCellRenderer;
+import javax.swing.ListSelectionModel;
+import javax.swing.ScrollPaneConstants;
+import javax.swing.SwingUtilities;
+
+/***
+ * The chat log. A JList only paints the rows that are on screen, and one
+ * renderer component is reused for all of them, so the cost of a message no
+ * longer grows with the size of the log. Wrapped heights are worked out once
+ * per line and width and kept on the line itself. Only the newest
+ * -Dclient.transcriptLines (default 5000) lines are kept.
+ * 
+ * Must only be used on the EDT.
+ */
+class Transcript extends JList<Transcript.Line> {
+    private static final long serialVersionUID = 1L;
+    final static int MAX_LINES = Math.max(1, Integer.getInteger("client.transcriptLines", 5000));
+    private final Model model;
+    private final JScrollPane scroll;
+    private int measuredWidth = -1;
+    private boolean isFollowPending = false;
+
+    /***
+     * One message and its cached height at the width it was last measured at
+     */
+    static class Line {
+	final String text;
+	int width = -1;
+	int height;
+
+	Line(String text) {
+	    this.text = text;
+	}
+    }
+
+    /***
+     * Bounded list of lines in a circular buffer, oldest dropped first
+     */
+    private static class Model extends AbstractListModel<Line> {
+	private static final long serialVersionUID = 1L;
+	private final Line[] lines = new Line[MAX_LINES];
+	private int head = 0;// index of the oldest line
+	private int size = 0;
+
+	@Override
+	public int getSize() {
+	    return size;
+	}
+
+	@Override
+	public Line getElementAt(int index) {
+	    return lines[(head + index) % lines.length];
+	}
+
+	void add(Line line) {
+	    if (size == lines.length) {
+		lines[head] = null;
+		head = (head + 1) % lines.length;
+		size--;
+		fireIntervalRemoved(this, 0, 0);
+	    }
+	    lines[(head + size) % lines.length] = line;
+	    size++;
+	    fireIntervalAdded(this, size - 1, size - 1);
+	}
+
+	void clear() {
+	    if (size > 0) {
+		int removed = size;
+		Arrays.fill(lines, null);
+		head = 0;
+		size = 0;
+		fireIntervalRemoved(this, 0, removed - 1);
+	    }
+	}
+    }
+
+    /***
+     * Paints every row with the same wrapping text area. The list asks for
+     * every row's size whenever it changes, so sizing a row whose height is
+     * cached must not touch the text area; the text is only swapped in when the
+     * row is actually painted.
+     */
+    private static class Row extends JTextArea implements ListCellRenderer<Line> {
+	private static final long serialVersionUID = 1L;
+	private Line line;
+	private Line shown;
+	private final Dimension size = new Dimension();
+
+	Row() {
+	    setLineWrap(true);
+	    setWrapStyleWord(true);
+	    setEditable(false);
+	    setBorder(BorderFactory.createEmptyBorder(2, 4, 2, 4));
+	}
+
+	@Override
+	public Component getListCellRendererComponent(JList<? extends Line> list, Line line, int index,
+		boolean isSelected, boolean cellHasFocus) {
+	    this.line = line;
+	    setFont(list.getFont());
+	    setBackground(isSelected ? list.getSelectionBackground() : list.getBackground());
+	    setForeground(isSelected ? list.getSelectionForeground() : list.getForeground());
+	    int width = list.getWidth();
+	    if (width <= 0) {
+		// not laid out yet, guess one line and measure properly later
+		size.setSize(0, getFontMetrics(getFont()).getHeight() + 4);
+		return this;
+	    }
+	    if (line.width != width) {
+		// text areas only wrap once they know their width
+		show(line);
+		setSize(width, Short.MAX_VALUE);
+		line.height = super.getPreferredSize().height;
+		line.width = width;
+	    }
+	    size.setSize(width, line.height);
+	    return this;
+	}
+
+	private void show(Line l) {
+	    if (shown != l) {
+		setText(l.text);
+		shown = l;
+	    }
+	}
+
+	@Override
+	public Dimension getPreferredSize() {
+	    return new Dimension(size);
+	}
+
+	@Override
+	public void paint(Graphics g) {
+	    show(line);
+	    super.paint(g);
+	}
+
+	// same as DefaultListCellRenderer, a rubber stamp never needs these
+	@Override
+	public void revalidate() {
+	}
+
+	@Override
+	public void repaint(long tm, int x, int y, int width, int height) {
+	}
+
+	@Override
+	public void repaint(Rectangle r) {
+	}
+
+	@Override
+	public void invalidate() {
+	}
+    }
+
+    Transcript() {
+	model = new Model();
+	setModel(model);
+	setCellRenderer(new Row());
+	setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+	scroll = new JScrollPane(this);
+	scroll.setHorizontalScrollBarPolicy(ScrollPaneConstants.HORIZONTAL_SCROLLBAR_NEVER);
+	scroll.setVerticalScrollBarPolicy(ScrollPaneConstants.VERTICAL_SCROLLBAR_AS_NEEDED);
+	addComponentListener(new ComponentAdapter() {
+	    @Override
+	    public void componentResized(ComponentEvent e) {
+		if (getWidth() != measuredWidth) {
+		    measuredWidth = getWidth();
+		    // the list caches row heights, toggling this makes it ask again
+		    setFixedCellHeight(1);
+		    setFixedCellHeight(-1);
+		}
+	    }
+	});
+    }
+
+    /***
+     * @return the scroll pane to add to the layout
+     */
+    JScrollPane getScrollPane() {
+	return scroll;
+    }
+
+    // rows wrap to the viewport instead of scrolling sideways
+    @Override
+    public boolean getScrollableTracksViewportWidth() {
+	return true;
+    }
+
+    /***
+     * Adds a line, following it if the view was already at the bottom
+     * 
+     * @param text
+     */
+    void append(String text) {
+	JScrollBar bar = scroll.getVerticalScrollBar();
+	boolean follow = bar.getValue() + bar.getVisibleAmount() >= bar.getMaximum();
+	model.add(new Line(text));
+	if (follow && !isFollowPending) {
+	    // scrolling makes the list lay out every row, so a burst of
+	    // messages scrolls once after the last of them
+	    isFollowPending = true;
+	    SwingUtilities.invokeLater(() -> {
+		isFollowPending = false;
+		ensureIndexIsVisible(model.getSize() - 1);
+	    });
+	}
+    }
+
+    void clear() {
+	model.clear();
+    }
+}
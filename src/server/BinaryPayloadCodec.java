@@ -0,0 +1,278 @@
+package server;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/***
+ * Compact default codec. Body layout:
+ * 
+ * <pre>
+ * type    1 byte  PayloadType ordinal (new types must only be appended)
+ * flags   1 byte  which optional fields follow
+ * number  varint  zigzag encoded
+ * name    varint length + UTF-8 bytes, if FLAG_NAME
+ * message varint length + UTF-8 bytes, if FLAG_MESSAGE
+ * names   varint count, then each name as above, if FLAG_NAMES
+ * seq     varlong, if FLAG_SEQUENCE
+ * </pre>
+ * 
+ * The frame is sized up front so encoding allocates exactly one array.
+ */
+public class BinaryPayloadCodec implements PayloadCodec {
+    private final static int FLAG_NAME = 1;
+    private final static int FLAG_MESSAGE = 1 << 1;
+    private final static int FLAG_NAMES = 1 << 2;
+    private final static int FLAG_SEQUENCE = 1 << 3;
+    private final static PayloadType[] TYPES = PayloadType.values();
+
+    @Override
+    public byte[] encode(Payload p) throws IOException {
+	PayloadType type = p.getPayloadType();
+	if (type == null) {
+	    throw new IOException("Payload has no type");
+	}
+	String name = p.getClientName();
+	String message = p.getMessage();
+	int number = zigzag(p.getNumber());
+	int flags = 0;
+	int size = 2 + varIntSize(number);
+	int nameLength = 0;
+	int messageLength = 0;
+	if (name != null) {
+	    flags |= FLAG_NAME;
+	    nameLength = utf8Length(name);
+	    size += varIntSize(nameLength) + nameLength;
+	}
+	if (message != null) {
+	    flags |= FLAG_MESSAGE;
+	    messageLength = utf8Length(message);
+	    size += varIntSize(messageLength) + messageLength;
+	}
+	List<String> names = p.getClientNames();
+	int[] nameLengths = null;
+	if (names != null) {
+	    flags |= FLAG_NAMES;
+	    nameLengths = new int[names.size()];
+	    size += varIntSize(nameLengths.length);
+	    for (int i = 0; i < nameLengths.length; i++) {
+		nameLengths[i] = utf8Length(names.get(i));
+		size += varIntSize(nameLengths[i]) + nameLengths[i];
+	    }
+	}
+	long sequence = p.getSequence();
+	if (sequence != 0) {
+	    flags |= FLAG_SEQUENCE;
+	    size += varLongSize(sequence);
+	}
+	byte[] frame = new byte[Frames.HEADER_SIZE + size];
+	Frames.writeLength(frame, size);
+	int pos = Frames.HEADER_SIZE;
+	frame[pos++] = (byte) type.ordinal();
+	frame[pos++] = (byte) flags;
+	pos = writeVarInt(frame, pos, number);
+	if (name != null) {
+	    pos = writeVarInt(frame, pos, nameLength);
+	    pos = writeUtf8(frame, pos, name);
+	}
+	if (message != null) {
+	    pos = writeVarInt(frame, pos, messageLength);
+	    pos = writeUtf8(frame, pos, message);
+	}
+	if (names != null) {
+	    pos = writeVarInt(frame, pos, nameLengths.length);
+	    for (int i = 0; i < nameLengths.length; i++) {
+		pos = writeVarInt(frame, pos, nameLengths[i]);
+		pos = writeUtf8(frame, pos, names.get(i));
+	    }
+	}
+	if (sequence != 0) {
+	    pos = writeVarLong(frame, pos, sequence);
+	}
+	return frame;
+    }
+
+    @Override
+    public Payload decode(byte[] body, int offset, int length) throws IOException {
+	Reader r = new Reader(body, offset, length);
+	int type = r.readByte();
+	if (type < 0 || type >= TYPES.length) {
+	    throw new IOException("Unknown payload type " + type);
+	}
+	int flags = r.readByte();
+	Payload p = new Payload();
+	p.setPayloadType(TYPES[type]);
+	int number = r.readVarInt();
+	p.setNumber((number >>> 1) ^ -(number & 1));
+	if ((flags & FLAG_NAME) != 0) {
+	    p.setClientName(r.readString());
+	}
+	if ((flags & FLAG_MESSAGE) != 0) {
+	    p.setMessage(r.readString());
+	}
+	if ((flags & FLAG_NAMES) != 0) {
+	    int count = r.readVarInt();
+	    if (count < 0 || count > length) {
+		// every name takes at least one byte
+		throw new IOException("Bad name count " + count);
+	    }
+	    List<String> names = new ArrayList<String>(count);
+	    for (int i = 0; i < count; i++) {
+		names.add(r.readString());
+	    }
+	    p.setClientNames(names);
+	}
+	if ((flags & FLAG_SEQUENCE) != 0) {
+	    p.setSequence(r.readVarLong());
+	}
+	return p;
+    }
+
+    private static int zigzag(int n) {
+	return (n << 1) ^ (n >> 31);
+    }
+
+    static int varIntSize(int v) {
+	int size = 1;
+	while ((v & ~0x7F) != 0) {
+	    v >>>= 7;
+	    size++;
+	}
+	return size;
+    }
+
+    static int writeVarInt(byte[] buf, int pos, int v) {
+	while ((v & ~0x7F) != 0) {
+	    buf[pos++] = (byte) ((v & 0x7F) | 0x80);
+	    v >>>= 7;
+	}
+	buf[pos++] = (byte) v;
+	return pos;
+    }
+
+    static int varLongSize(long v) {
+	int size = 1;
+	while ((v & ~0x7FL) != 0) {
+	    v >>>= 7;
+	    size++;
+	}
+	return size;
+    }
+
+    static int writeVarLong(byte[] buf, int pos, long v) {
+	while ((v & ~0x7FL) != 0) {
+	    buf[pos++] = (byte) ((v & 0x7F) | 0x80);
+	    v >>>= 7;
+	}
+	buf[pos++] = (byte) v;
+	return pos;
+    }
+
+    static int utf8Length(String s) {
+	int length = 0;
+	for (int i = 0, l = s.length(); i < l; i++) {
+	    char c = s.charAt(i);
+	    if (c < 0x80) {
+		length++;
+	    }
+	    else if (c < 0x800) {
+		length += 2;
+	    }
+	    else if (Character.isHighSurrogate(c) && i + 1 < l && Character.isLowSurrogate(s.charAt(i + 1))) {
+		length += 4;
+		i++;
+	    }
+	    else {
+		// lone surrogates are written as '?' by the JDK encoder, 3 bytes otherwise
+		length += Character.isSurrogate(c) ? 1 : 3;
+	    }
+	}
+	return length;
+    }
+
+    static int writeUtf8(byte[] buf, int pos, String s) {
+	for (int i = 0, l = s.length(); i < l; i++) {
+	    char c = s.charAt(i);
+	    if (c < 0x80) {
+		buf[pos++] = (byte) c;
+	    }
+	    else if (c < 0x800) {
+		buf[pos++] = (byte) (0xC0 | (c >> 6));
+		buf[pos++] = (byte) (0x80 | (c & 0x3F));
+	    }
+	    else if (Character.isHighSurrogate(c) && i + 1 < l && Character.isLowSurrogate(s.charAt(i + 1))) {
+		int cp = Character.toCodePoint(c, s.charAt(++i));
+		buf[pos++] = (byte) (0xF0 | (cp >> 18));
+		buf[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+		buf[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+		buf[pos++] = (byte) (0x80 | (cp & 0x3F));
+	    }
+	    else if (Character.isSurrogate(c)) {
+		buf[pos++] = '?';
+	    }
+	    else {
+		buf[pos++] = (byte) (0xE0 | (c >> 12));
+		buf[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+		buf[pos++] = (byte) (0x80 | (c & 0x3F));
+	    }
+	}
+	return pos;
+    }
+
+    /***
+     * Bounds checked cursor over a frame body
+     */
+    static class Reader {
+	private final byte[] buf;
+	private int pos;
+	private final int end;
+
+	Reader(byte[] buf, int offset, int length) {
+	    this.buf = buf;
+	    this.pos = offset;
+	    this.end = offset + length;
+	}
+
+	int readByte() throws IOException {
+	    if (pos >= end) {
+		throw new IOException("Truncated payload");
+	    }
+	    return buf[pos++] & 0xFF;
+	}
+
+	int readVarInt() throws IOException {
+	    int v = 0;
+	    for (int shift = 0; shift < 35; shift += 7) {
+		int b = readByte();
+		v |= (b & 0x7F) << shift;
+		if ((b & 0x80) == 0) {
+		    return v;
+		}
+	    }
+	    throw new IOException("Malformed varint");
+	}
+
+	long readVarLong() throws IOException {
+	    long v = 0;
+	    for (int shift = 0; shift < 70; shift += 7) {
+		int b = readByte();
+		v |= (long) (b & 0x7F) << shift;
+		if ((b & 0x80) == 0) {
+		    return v;
+		}
+	    }
+	    throw new IOException("Malformed varlong");
+	}
+
+	String readString() throws IOException {
+	    int length = readVarInt();
+	    if (length < 0 || length > end - pos) {
+		throw new IOException("Truncated string");
+	    }
+	    String s = new String(buf, pos, length, StandardCharsets.UTF_8);
+	    pos += length;
+	    return s;
+	}
+    }
+}
@@ -0,0 +1,53 @@
+package server;
+
+import java.io.IOException;
+
+/***
+ * A payload that goes to many clients. It's encoded at most once per codec and
+ * the resulting frame is shared by every recipient, so fan-out to a big room
+ * costs one encode instead of one per member. Frames handed out must never be
+ * modified.
+ */
+final class Broadcast {
+    private final Payload payload;
+    private volatile byte[] binaryFrame;
+    private volatile byte[] serializedFrame;
+
+    Broadcast(Payload payload) {
+	this.payload = payload;
+    }
+
+    /***
+     * @param payload
+     * @param binaryFrame payload already encoded with Frames.BINARY
+     */
+    Broadcast(Payload payload, byte[] binaryFrame) {
+	this.payload = payload;
+	this.binaryFrame = binaryFrame;
+    }
+
+    Payload getPayload() {
+	return payload;
+    }
+
+    /***
+     * @param codec
+     * @return the shared, encoded frame for this codec
+     * @throws IOException
+     */
+    byte[] frameFor(PayloadCodec codec) throws IOException {
+	if (codec == Frames.BINARY) {
+	    byte[] f = binaryFrame;
+	    if (f == null) {
+		// racing encoders produce identical bytes, last write wins
+		binaryFrame = f = codec.encode(payload);
+	    }
+	    return f;
+	}
+	byte[] f = serializedFrame;
+	if (f == null) {
+	    serializedFrame = f = codec.encode(payload);
+	}
+	return f;
+    }
+}
@@ -0,0 +1,73 @@
+package server;
+
+import java.io.IOException;
+import java.util.Locale;
+
+/***
+ * Carries room messages between server instances so a room can have members on
+ * more than one node. A node publishes every message sent in one of its rooms
+ * and delivers what other nodes publish to its own members of the same room.
+ * 
+ * Messages are tagged with the publishing node and that node's sequence number
+ * for the room. Sequences from one node only ever increase, which is what lets
+ * receivers drop repeats (see SocketServer.receiveRemote).
+ */
+interface BroadcastBus extends AutoCloseable {
+
+    /***
+     * Called for each message published by another node, in that node's order
+     */
+    interface Listener {
+	void onMessage(String origin, String roomKey, long sequence, byte[] frame);
+    }
+
+    /***
+     * Queues a message for the other nodes. Must not block the caller on the
+     * network.
+     * 
+     * @param roomKey  normalized room name
+     * @param sequence the room's sequence number on this node
+     * @param frame    the message's binary frame, not modified afterwards
+     */
+    void publish(String roomKey, long sequence, byte[] frame);
+
+    /***
+     * Starts delivering other nodes' messages
+     * 
+     * @param listener
+     * @throws IOException
+     */
+    void start(Listener listener) throws IOException;
+
+    /***
+     * @return the id this node publishes under
+     */
+    String getOrigin();
+
+    @Override
+    void close();
+
+    /***
+     * -Dbus=local joins the in-process bus (several servers in one JVM),
+     * -Dbus=tcp with bus.port, bus.peers=host:port,... and optionally bus.host
+     * (loopback by default) links processes
+     * 
+     * @param node this node's id, e.g. cluster.self, or null to make one up
+     * @return the configured bus or null for none
+     */
+    static BroadcastBus fromProperties(String node) {
+	String mode = System.getProperty("bus", "");
+	String origin = System.getProperty("bus.node", node != null ? node : Long.toHexString(System.nanoTime()));
+	switch (mode.toLowerCase(Locale.ROOT)) {
+	case "local":
+	    return new LocalBroadcastBus(origin);
+	case "tcp":
+	    return new TcpBroadcastBus(origin, System.getProperty("bus.host"), Integer.getInteger("bus.port", 0),
+		    System.getProperty("bus.peers", ""));
+	case "":
+	    return null;
+	default:
+	    throw new IllegalArgumentException("Unknown bus " + mode);
+	}
+    }
+}
@@ -0,0 +1,24 @@
+package server;
+
+/***
+ * Moves frames between the server and a single client. ServerThread owns the
+ * protocol and room logic; implementations only deal with bytes so the same
+ * ServerThread works over blocking sockets or the NIO selector loops.
+ */
+interface ClientChannel {
+    /***
+     * Queues a complete frame, length prefix included, for the channel's writer.
+     * Never blocks on the network.
+     * 
+     * @param frame
+     * @return false if the channel is closed or the client overflowed its queue
+     *         and was disconnected
+     */
+    boolean send(byte[] frame);
+
+    OutboundQueue getOutbound();
+
+    void close();
+
+    boolean isClosed();
+}
@@ -0,0 +1,76 @@
+package server;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/***
+ * Rooms shared out between several server processes. Every node is started
+ * with the same -Dcluster.nodes=a=127.0.0.1:3000,b=127.0.0.1:3001 and its own
+ * -Dcluster.self=a. Each room belongs to one node by consistent hashing on its
+ * name; the Lobby is the exception, every node has its own.
+ */
+final class Cluster {
+    private final static Logger log = Logger.getLogger(Cluster.class.getName());
+    private final String self;
+    // node id to the host:port clients reach it on
+    private final Map<String, String> addresses;
+    private final ConsistentHashRing ring;
+
+    Cluster(String self, Map<String, String> addresses, int virtualNodes) {
+	if (!addresses.containsKey(self)) {
+	    throw new IllegalArgumentException("cluster.self " + self + " isn't in cluster.nodes");
+	}
+	this.self = self;
+	this.addresses = addresses;
+	ring = new ConsistentHashRing(addresses.keySet(), virtualNodes);
+    }
+
+    /***
+     * @return the cluster set by the cluster.* properties or null if this is a
+     *         single server
+     */
+    static Cluster fromProperties() {
+	String nodes = System.getProperty("cluster.nodes", "");
+	if (nodes.isEmpty()) {
+	    return null;
+	}
+	Map<String, String> addresses = new LinkedHashMap<String, String>();
+	for (String node : nodes.split(",")) {
+	    int eq = node.indexOf('=');
+	    if (eq <= 0 || node.indexOf(':', eq) < 0) {
+		throw new IllegalArgumentException("Expected id=host:port in cluster.nodes, got " + node);
+	    }
+	    addresses.put(node.substring(0, eq).trim(), node.substring(eq + 1).trim());
+	}
+	Cluster c = new Cluster(System.getProperty("cluster.self", ""), addresses,
+		Integer.getInteger("cluster.virtualNodes", 160));
+	log.log(Level.INFO, "Node " + c.self + " of " + addresses.keySet());
+	return c;
+    }
+
+    String getSelf() {
+	return self;
+    }
+
+    /***
+     * @param roomKey normalized room name
+     * @return the id of the node that owns the room
+     */
+    String ownerOf(String roomKey) {
+	return ring.nodeFor(roomKey);
+    }
+
+    /***
+     * @param nodeId
+     * @return host:port of the node
+     */
+    String addressOf(String nodeId) {
+	return addresses.get(nodeId);
+    }
+
+    boolean isLocal(String roomKey) {
+	return self.equals(ownerOf(roomKey));
+    }
+}
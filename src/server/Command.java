@@ -0,0 +1,13 @@
+package server;
+
+/***
+ * A chat command, triggered by a message starting with /name
+ */
+public interface Command {
+    /***
+     * @param room   the room the command was sent from
+     * @param client the client that sent it
+     * @param args   everything after the command name, trimmed; empty if none
+     */
+    void execute(Room room, ServerThread client, String args);
+}
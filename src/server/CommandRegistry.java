@@ -0,0 +1,109 @@
+package server;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/***
+ * Maps command names to Commands. Only a message whose first character is the
+ * trigger is looked at, and the name is matched in place against a table
+ * bucketed by its first letter, so ordinary chat costs one charAt and finding a
+ * command allocates nothing until its arguments are cut out.
+ */
+class CommandRegistry {
+    final static char COMMAND_TRIGGER = '/';
+
+    private static class Entry {
+	final String name;
+	final Command command;
+
+	Entry(String name, Command command) {
+	    this.name = name;
+	    this.command = command;
+	}
+    }
+
+    // indexed by the lowercase first character of the name, replaced wholesale
+    // on registration so lookups never need a lock
+    private volatile Entry[][] table = new Entry[128][];
+
+    /***
+     * Adds or replaces a command. Names are case insensitive and limited to ASCII
+     * letters and digits.
+     * 
+     * @param name
+     * @param command
+     */
+    synchronized void register(String name, Command command) {
+	if (name == null || name.isEmpty() || command == null) {
+	    throw new IllegalArgumentException("Command needs a name and an implementation");
+	}
+	for (int i = 0; i < name.length(); i++) {
+	    if (!isAsciiLetterOrDigit(name.charAt(i))) {
+		throw new IllegalArgumentException("Bad command name: " + name);
+	    }
+	}
+	// root locale, in Turkish "I" lowercases to a dotless i outside ASCII
+	String key = name.toLowerCase(Locale.ROOT);
+	Entry[][] copy = table.clone();
+	Entry[] bucket = copy[key.charAt(0)];
+	if (bucket == null) {
+	    bucket = new Entry[0];
+	}
+	int existing = -1;
+	for (int i = 0; i < bucket.length; i++) {
+	    if (bucket[i].name.equals(key)) {
+		existing = i;
+	    }
+	}
+	if (existing >= 0) {
+	    bucket = bucket.clone();
+	    bucket[existing] = new Entry(key, command);
+	}
+	else {
+	    bucket = Arrays.copyOf(bucket, bucket.length + 1);
+	    bucket[bucket.length - 1] = new Entry(key, command);
+	}
+	copy[key.charAt(0)] = bucket;
+	table = copy;
+    }
+
+    /***
+     * Runs the command in the message, if it is one
+     * 
+     * @param message
+     * @param room
+     * @param client
+     * @return true if the message was a command (and shouldn't be broadcast)
+     */
+    boolean dispatch(String message, Room room, ServerThread client) {
+	int length = message.length();
+	if (length < 2 || message.charAt(0) != COMMAND_TRIGGER) {
+	    return false;
+	}
+	char first = message.charAt(1);
+	if (!isAsciiLetterOrDigit(first)) {
+	    return false;
+	}
+	Entry[] bucket = table[Character.toLowerCase(first)];
+	if (bucket == null) {
+	    return false;
+	}
+	int end = 2;
+	while (end < length && message.charAt(end) != ' ') {
+	    end++;
+	}
+	int nameLength = end - 1;
+	for (Entry e : bucket) {
+	    if (e.name.length() == nameLength && message.regionMatches(true, 1, e.name, 0, nameLength)) {
+		String args = end < length ? message.substring(end + 1).trim() : "";
+		e.command.execute(room, client, args);
+		return true;
+	    }
+	}
+	return false;
+    }
+
+    private static boolean isAsciiLetterOrDigit(char c) {
+	return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9');
+    }
+}
@@ -0,0 +1,58 @@
+package server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+
+/***
+ * Maps keys onto a fixed set of nodes so that adding or removing a node only
+ * moves the keys that node gains or loses. Each node is placed on the ring many
+ * times (virtual nodes) to even out the share each one gets.
+ */
+final class ConsistentHashRing {
+    private final TreeMap<Long, String> ring = new TreeMap<Long, String>();
+
+    /***
+     * @param nodes        node ids, every process must use the same list
+     * @param virtualNodes points per node
+     */
+    ConsistentHashRing(Collection<String> nodes, int virtualNodes) {
+	if (nodes.isEmpty()) {
+	    throw new IllegalArgumentException("A ring needs at least one node");
+	}
+	for (String node : nodes) {
+	    for (int i = 0; i < virtualNodes; i++) {
+		// on a collision the smaller id wins so every process agrees
+		ring.merge(hash(node + "#" + i), node, (a, b) -> a.compareTo(b) <= 0 ? a : b);
+	    }
+	}
+    }
+
+    /***
+     * @param key
+     * @return the node owning the key
+     */
+    String nodeFor(String key) {
+	Map.Entry<Long, String> e = ring.ceilingEntry(hash(key));
+	return (e != null ? e : ring.firstEntry()).getValue();
+    }
+
+    /***
+     * 64 bit FNV-1a over the UTF-8 bytes with a final mix so similar keys
+     * (room1, room2...) land far apart
+     */
+    static long hash(String key) {
+	long h = 0xcbf29ce484222325L;
+	for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+	    h ^= b & 0xff;
+	    h *= 0x100000001b3L;
+	}
+	h ^= h >>> 33;
+	h *= 0xff51afd7ed558ccdL;
+	h ^= h >>> 33;
+	h *= 0xc4ceb9fe1a85ec53L;
+	h ^= h >>> 33;
+	return h;
+    }
+}
@@ -0,0 +1,89 @@
+package server;
+
+import java.io.IOException;
+
+/***
+ * Every Payload travels as its own frame: a 4 byte big endian length followed
+ * by the encoded body. The length prefix is what lets the NIO transport find
+ * message boundaries without a blocking ObjectInputStream per socket.
+ */
+public class Frames {
+    public final static int HEADER_SIZE = 4;
+    public final static int MAX_FRAME = 1024 * 1024;
+    // Most characters of client supplied text (a name or a message) the server
+    // passes on. Either codec takes at most 3 bytes a character, so a name plus
+    // a message plus everything else in a payload stays under MAX_FRAME.
+    public final static int MAX_TEXT = (MAX_FRAME - 4096) / 6;
+    public final static PayloadCodec BINARY = new BinaryPayloadCodec();
+    public final static PayloadCodec SERIALIZED = new SerializedPayloadCodec();
+    // -Dpayload.codec=serialized falls back to Java serialization
+    private final static PayloadCodec DEFAULT = "serialized".equalsIgnoreCase(System.getProperty("payload.codec"))
+	    ? SERIALIZED
+	    : BINARY;
+
+    private Frames() {
+    }
+
+    public static PayloadCodec defaultCodec() {
+	return DEFAULT;
+    }
+
+    /***
+     * Figures out which codec produced a frame body. Java serialization always
+     * starts with 0xACED, binary bodies start with a small type ordinal.
+     * 
+     * @param body
+     * @param offset
+     * @return
+     */
+    public static PayloadCodec codecFor(byte[] body, int offset) {
+	return body[offset] == SerializedPayloadCodec.MAGIC ? SERIALIZED : BINARY;
+    }
+
+    /***
+     * Encodes a payload into a complete frame (length prefix included) that can
+     * be written to a socket as is
+     * 
+     * @param p
+     * @return
+     * @throws IOException
+     */
+    public static byte[] encode(Payload p) throws IOException {
+	return DEFAULT.encode(p);
+    }
+
+    /***
+     * Decodes the body of a frame (without the length prefix) with whichever
+     * codec produced it
+     * 
+     * @param body
+     * @param offset
+     * @param length
+     * @return
+     * @throws IOException
+     */
+    public static Payload decode(byte[] body, int offset, int length) throws IOException {
+	return codecFor(body, offset).decode(body, offset, length);
+    }
+
+    /***
+     * Validates a length prefix read off the wire
+     * 
+     * @param length
+     * @return the same length
+     * @throws IOException if the frame is empty or larger than MAX_FRAME
+     */
+    public static int checkLength(int length) throws IOException {
+	if (length <= 0 || length > MAX_FRAME) {
+	    throw new IOException("Invalid frame length " + length);
+	}
+	return length;
+    }
+
+    static void writeLength(byte[] frame, int length) {
+	frame[0] = (byte) (length >>> 24);
+	frame[1] = (byte) (length >>> 16);
+	frame[2] = (byte) (length >>> 8);
+	frame[3] = (byte) length;
+    }
+}
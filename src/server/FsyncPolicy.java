@@ -0,0 +1,15 @@
+package server;
+
+/***
+ * When room history is forced to disk. Every policy is a group commit: one
+ * force covers every message appended since the last one, and it never runs on
+ * the thread doing the broadcast.
+ */
+public enum FsyncPolicy {
+    /** leave write back to the OS */
+    NEVER,
+    /** force dirty logs every server.history.fsyncMillis */
+    INTERVAL,
+    /** like INTERVAL, but also as soon as a log has server.history.fsyncBatch unforced messages */
+    BATCH
+}
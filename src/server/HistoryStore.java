@@ -0,0 +1,203 @@
+package server;
+
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/***
+ * Owns the history directory and the thread that forces room logs to disk.
+ * Appends only hand a dirty log to the flusher, so however many messages arrive
+ * between two passes they cost one force per log (group commit). The same thread
+ * releases the files of logs that have gone quiet.
+ * 
+ * History is off unless server.history.dir names a directory.
+ */
+class HistoryStore implements AutoCloseable {
+    // first, the property parsing below logs
+    private final static Logger log = Logger.getLogger(HistoryStore.class.getName());
+    // empty (the default) disables history
+    final static String DIR = System.getProperty("server.history.dir", "");
+    final static FsyncPolicy POLICY = policy(System.getProperty("server.history.fsync", "batch"));
+    final static long FSYNC_MILLIS = Long.getLong("server.history.fsyncMillis", 200);
+    final static int FSYNC_BATCH = Integer.getInteger("server.history.fsyncBatch", 256);
+    final static int SEGMENT_BYTES = segmentBytes(Integer.getInteger("server.history.segmentBytes", 4 * 1024 * 1024));
+    // segments kept per room, older ones are deleted, 0 keeps everything
+    final static int MAX_SEGMENTS = Integer.getInteger("server.history.maxSegments", 16);
+    // a log without appends for this long gives up its mapping until the next one
+    final static long IDLE_MILLIS = Long.getLong("server.history.idleMillis", 60000);
+
+    private final Path root;
+    // logs with unforced appends, guarded by this
+    private List<MessageLog> dirty = new ArrayList<MessageLog>();
+    // logs not closed yet, guarded by this
+    private final Set<MessageLog> open = new LinkedHashSet<MessageLog>();
+    private boolean isRunning = true;
+    private final Thread flusher;
+
+    private static FsyncPolicy policy(String name) {
+	try {
+	    return FsyncPolicy.valueOf(name.toUpperCase(Locale.ROOT));
+	}
+	catch (IllegalArgumentException e) {
+	    log.log(Level.WARNING, "Unknown fsync policy " + name + ", using " + FsyncPolicy.BATCH);
+	    return FsyncPolicy.BATCH;
+	}
+    }
+
+    private static int segmentBytes(int bytes) {
+	if (bytes < MessageLog.MIN_SEGMENT_BYTES) {
+	    log.log(Level.WARNING, "History segments of " + bytes + " bytes can't hold the largest frame, using "
+		    + MessageLog.MIN_SEGMENT_BYTES);
+	    return MessageLog.MIN_SEGMENT_BYTES;
+	}
+	return bytes;
+    }
+
+    /***
+     * @param node cluster node id, keeps nodes sharing a directory apart, or
+     *             null
+     * @return the store configured by the server.history.* properties or null
+     *         if history is turned off
+     */
+    static HistoryStore fromProperties(String node) {
+	if (DIR.isEmpty()) {
+	    return null;
+	}
+	Path root = node == null ? Paths.get(DIR) : Paths.get(DIR, node);
+	log.log(Level.INFO, "Room history in " + root.toAbsolutePath() + " (fsync " + POLICY + ")");
+	return new HistoryStore(root);
+    }
+
+    HistoryStore(Path root) {
+	this.root = root;
+	flusher = new Thread(this::flushLoop, "history-flusher");
+	flusher.setDaemon(true);
+	flusher.start();
+    }
+
+    /***
+     * Opens (or recovers) a room's log
+     * 
+     * @param roomKey normalized room name
+     * @return
+     * @throws IOException
+     */
+    MessageLog open(String roomKey) throws IOException {
+	// room names are user input, keep them to safe file names
+	String dir = "r_" + URLEncoder.encode(roomKey, StandardCharsets.UTF_8).replace("*", "%2A");
+	MessageLog messageLog = new MessageLog(this, root.resolve(dir), SEGMENT_BYTES, MAX_SEGMENTS);
+	synchronized (this) {
+	    open.add(messageLog);
+	}
+	return messageLog;
+    }
+
+    /***
+     * Called by a log once it's closed
+     * 
+     * @param messageLog
+     */
+    synchronized void closed(MessageLog messageLog) {
+	open.remove(messageLog);
+    }
+
+    /***
+     * Called by a log after each append
+     * 
+     * @param messageLog
+     * @param becameDirty true the first time since its last force
+     */
+    void appended(MessageLog messageLog, boolean becameDirty) {
+	if (POLICY == FsyncPolicy.NEVER) {
+	    return;
+	}
+	boolean wake = POLICY == FsyncPolicy.BATCH && messageLog.getUnforced() >= FSYNC_BATCH;
+	if (!becameDirty && !wake) {
+	    return;
+	}
+	synchronized (this) {
+	    if (becameDirty) {
+		dirty.add(messageLog);
+	    }
+	    if (wake) {
+		notifyAll();
+	    }
+	}
+    }
+
+    private void flushLoop() {
+	long nextSweep = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(IDLE_MILLIS);
+	while (true) {
+	    List<MessageLog> logs;
+	    synchronized (this) {
+		try {
+		    if (isRunning) {
+			wait(FSYNC_MILLIS);
+		    }
+		}
+		catch (InterruptedException e) {
+		    isRunning = false;
+		}
+		logs = dirty;
+		dirty = new ArrayList<MessageLog>();
+	    }
+	    for (MessageLog l : logs) {
+		try {
+		    l.force();
+		}
+		catch (IOException e) {
+		    log.log(Level.WARNING, "Failed to force room history", e);
+		}
+	    }
+	    if (System.nanoTime() - nextSweep >= 0) {
+		nextSweep = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(IDLE_MILLIS);
+		releaseIdle();
+	    }
+	    synchronized (this) {
+		if (!isRunning && dirty.isEmpty()) {
+		    return;
+		}
+	    }
+	}
+    }
+
+    private void releaseIdle() {
+	List<MessageLog> logs;
+	synchronized (this) {
+	    logs = new ArrayList<MessageLog>(open);
+	}
+	long idleNanos = TimeUnit.MILLISECONDS.toNanos(IDLE_MILLIS);
+	int released = 0;
+	for (MessageLog l : logs) {
+	    try {
+		if (l.releaseIfIdle(idleNanos)) {
+		    released++;
+		}
+	    }
+	    catch (IOException e) {
+		log.log(Level.WARNING, "Failed to release idle room history", e);
+	    }
+	}
+	if (released > 0) {
+	    log.log(Level.FINE, "Released " + released + " idle room logs");
+	}
+    }
+
+    @Override
+    public void close() {
+	synchronized (this) {
+	    isRunning = false;
+	    notifyAll();
+	}
+    }
+}
@@ -0,0 +1,93 @@
+package server;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/***
+ * Bus between servers running in the same JVM. Publishing queues the message
+ * for every other member and each member delivers from its own thread, in
+ * order. Delivering on the publishing thread would run the other server's room
+ * code while this one still holds its room's sequenceLock.
+ */
+final class LocalBroadcastBus implements BroadcastBus {
+    private final static Logger log = Logger.getLogger(LocalBroadcastBus.class.getName());
+    private final static List<LocalBroadcastBus> members = new CopyOnWriteArrayList<LocalBroadcastBus>();
+    private final String origin;
+    private final BlockingQueue<Message> inbox = new ArrayBlockingQueue<Message>(TcpBroadcastBus.QUEUE_CAPACITY);
+    private final AtomicLong dropped = new AtomicLong();
+    private Thread deliverer;
+
+    private static class Message {
+	final String origin;
+	final String roomKey;
+	final long sequence;
+	final byte[] frame;
+
+	Message(String origin, String roomKey, long sequence, byte[] frame) {
+	    this.origin = origin;
+	    this.roomKey = roomKey;
+	    this.sequence = sequence;
+	    this.frame = frame;
+	}
+    }
+
+    LocalBroadcastBus(String origin) {
+	this.origin = origin;
+    }
+
+    @Override
+    public String getOrigin() {
+	return origin;
+    }
+
+    @Override
+    public void start(Listener listener) {
+	deliverer = Threads.factory("bus-local-", false).newThread(() -> deliverLoop(listener));
+	deliverer.setDaemon(true);
+	deliverer.start();
+	members.add(this);
+    }
+
+    private void deliverLoop(Listener listener) {
+	try {
+	    while (true) {
+		Message m = inbox.take();
+		try {
+		    listener.onMessage(m.origin, m.roomKey, m.sequence, m.frame);
+		}
+		catch (RuntimeException e) {
+		    log.log(Level.WARNING, "Failed to deliver a bus message for " + m.roomKey, e);
+		}
+	    }
+	}
+	catch (InterruptedException e) {
+	    // closed
+	}
+    }
+
+    @Override
+    public void publish(String roomKey, long sequence, byte[] frame) {
+	Message m = new Message(origin, roomKey, sequence, frame);
+	for (LocalBroadcastBus b : members) {
+	    if (b != this && !b.inbox.offer(m) && b.dropped.getAndIncrement() % 1000 == 0) {
+		// a member that can't keep up loses messages rather than holding
+		// up the room
+		log.log(Level.WARNING, "Bus queue of " + b.origin + " is full, " + b.dropped.get() + " dropped");
+	    }
+	}
+    }
+
+    @Override
+    public void close() {
+	members.remove(this);
+	if (deliverer != null) {
+	    deliverer.interrupt();
+	}
+	inbox.clear();
+    }
+}
\ No newline at end of file
@@ -0,0 +1,489 @@
+package server;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/***
+ * Append-only history of one room. Messages go into fixed size segment files
+ * written through a memory mapping, so an append is a memory copy and never
+ * waits on the disk; HistoryStore forces them out according to its
+ * FsyncPolicy.
+ * 
+ * Record layout: the 8 byte sequence number followed by the message's binary
+ * frame (which carries its own length). A zero sequence marks the end of the
+ * data in a segment. Every INDEX_INTERVAL records the (sequence, position) pair
+ * is added to a sparse index kept in memory and in a .idx file next to the
+ * segment, so finding a sequence number means a binary search plus a short
+ * scan.
+ * 
+ * Only the newest maxSegments segments are kept, older ones are deleted as new
+ * ones start. A log nobody has appended to for a while gives up its mapping and
+ * index file handle (see releaseIfIdle) and takes them back on the next append.
+ */
+class MessageLog implements AutoCloseable {
+    private final static int RECORD_HEADER = 8;
+    private final static int INDEX_INTERVAL = 64;
+    private final static int INDEX_ENTRY = 12;
+    private final static String LOG_SUFFIX = ".log";
+    private final static String INDEX_SUFFIX = ".idx";
+    // a segment must hold at least one record of the largest frame
+    final static int MIN_SEGMENT_BYTES = RECORD_HEADER + Frames.HEADER_SIZE + Frames.MAX_FRAME;
+
+    private final HistoryStore store;
+    private final Path dir;
+    private final int segmentBytes;
+    private final int maxSegments;
+    // everything below is guarded by this
+    private final List<Segment> segments = new ArrayList<Segment>();
+    private Segment active;
+    private MappedByteBuffer map;// the active segment
+    private FileChannel indexOut;// the active segment's index
+    private long lastAppendNanos = System.nanoTime();
+    private long lastSequence = 0;
+    private int dirtyFrom = 0;// start of the active segment's unforced bytes
+    private int unforced = 0;
+    boolean isDirty = false;// set when queued with the store's flusher
+    private boolean isClosed = false;
+
+    /***
+     * One segment file. Only the active segment changes, and readers only look
+     * at a copy made under the log's lock.
+     */
+    private static class Segment {
+	final long baseSequence;
+	final Path file;
+	long[] indexSequence = new long[16];
+	int[] indexPosition = new int[16];
+	int indexCount = 0;
+	int end = 0;// first free byte
+	int records = 0;
+
+	Segment(long baseSequence, Path file) {
+	    this.baseSequence = baseSequence;
+	    this.file = file;
+	}
+
+	void addIndex(long sequence, int position) {
+	    if (indexCount == indexSequence.length) {
+		indexSequence = Arrays.copyOf(indexSequence, indexCount * 2);
+		indexPosition = Arrays.copyOf(indexPosition, indexCount * 2);
+	    }
+	    indexSequence[indexCount] = sequence;
+	    indexPosition[indexCount] = position;
+	    indexCount++;
+	}
+
+	/***
+	 * @return position of the last indexed record at or before the sequence
+	 */
+	int floorPosition(long sequence) {
+	    int i = Arrays.binarySearch(indexSequence, 0, indexCount, sequence);
+	    if (i < 0) {
+		i = -i - 2;
+	    }
+	    return i < 0 ? 0 : indexPosition[i];
+	}
+
+	Segment copy() {
+	    Segment s = new Segment(baseSequence, file);
+	    s.indexSequence = Arrays.copyOf(indexSequence, indexCount);
+	    s.indexPosition = Arrays.copyOf(indexPosition, indexCount);
+	    s.indexCount = indexCount;
+	    s.end = end;
+	    s.records = records;
+	    return s;
+	}
+    }
+
+    /***
+     * @param store
+     * @param dir
+     * @param segmentBytes at least MIN_SEGMENT_BYTES
+     * @param maxSegments  segments kept, 0 keeps them all
+     * @throws IOException
+     */
+    MessageLog(HistoryStore store, Path dir, int segmentBytes, int maxSegments) throws IOException {
+	if (segmentBytes < MIN_SEGMENT_BYTES) {
+	    throw new IllegalArgumentException(
+		    "Segments of " + segmentBytes + " bytes can't hold a frame, need " + MIN_SEGMENT_BYTES);
+	}
+	this.store = store;
+	this.dir = dir;
+	this.segmentBytes = segmentBytes;
+	this.maxSegments = maxSegments;
+	Files.createDirectories(dir);
+	recover();
+    }
+
+    /***
+     * Loads the segments and indexes already on disk. Only the tail of the last
+     * segment, after its last index entry, has to be scanned.
+     */
+    private void recover() throws IOException {
+	List<Long> bases = new ArrayList<Long>();
+	try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*" + LOG_SUFFIX)) {
+	    for (Path f : files) {
+		String n = f.getFileName().toString();
+		try {
+		    bases.add(Long.parseLong(n.substring(0, n.length() - LOG_SUFFIX.length())));
+		}
+		catch (NumberFormatException e) {
+		    // not one of ours
+		}
+	    }
+	}
+	Collections.sort(bases);
+	for (long base : bases) {
+	    Segment s = new Segment(base, dir.resolve(fileName(base, LOG_SUFFIX)));
+	    loadIndex(s);
+	    s.end = segmentBytes;
+	    segments.add(s);
+	}
+	if (segments.isEmpty()) {
+	    return;
+	}
+	Segment last = segments.get(segments.size() - 1);
+	openActive(last);
+	int pos = last.indexCount > 0 ? last.indexPosition[last.indexCount - 1] : 0;
+	int scanned = 0;
+	long sequence = last.indexCount > 0 ? last.indexSequence[last.indexCount - 1] : 0;
+	while (pos + RECORD_HEADER + Frames.HEADER_SIZE <= segmentBytes) {
+	    long s = map.getLong(pos);
+	    int length = map.getInt(pos + RECORD_HEADER);
+	    if (s == 0 || length <= 0 || pos + RECORD_HEADER + Frames.HEADER_SIZE + length > segmentBytes) {
+		break;
+	    }
+	    sequence = s;
+	    pos += RECORD_HEADER + Frames.HEADER_SIZE + length;
+	    scanned++;
+	}
+	last.end = pos;
+	// the last indexed record was counted when it was indexed
+	last.records = Math.max(0, last.indexCount - 1) * INDEX_INTERVAL + scanned;
+	lastSequence = sequence;
+	dirtyFrom = pos;
+    }
+
+    private void loadIndex(Segment s) throws IOException {
+	Path indexFile = dir.resolve(fileName(s.baseSequence, INDEX_SUFFIX));
+	if (!Files.exists(indexFile)) {
+	    return;
+	}
+	ByteBuffer entries = ByteBuffer.wrap(Files.readAllBytes(indexFile));
+	// a torn last entry is just ignored
+	while (entries.remaining() >= INDEX_ENTRY) {
+	    s.addIndex(entries.getLong(), entries.getInt());
+	}
+    }
+
+    private void openActive(Segment s) throws IOException {
+	try (RandomAccessFile file = new RandomAccessFile(s.file.toFile(), "rw")) {
+	    // sparse on most file systems, pages are only used as they're written
+	    file.setLength(segmentBytes);
+	    map = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+	}
+	indexOut = FileChannel.open(dir.resolve(fileName(s.baseSequence, INDEX_SUFFIX)), StandardOpenOption.CREATE,
+		StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+	active = s;
+    }
+
+    private static String fileName(long baseSequence, String suffix) {
+	return String.format("%020d%s", baseSequence, suffix);
+    }
+
+    synchronized long getLastSequence() {
+	return lastSequence;
+    }
+
+    /***
+     * Appends a message. Sequence numbers must be increasing.
+     * 
+     * @param sequence
+     * @param frame    the message's binary frame
+     * @throws IOException if the log is closed, the record doesn't fit in a
+     *                     segment or the next segment can't be opened
+     */
+    void append(long sequence, byte[] frame) throws IOException {
+	boolean notify;
+	synchronized (this) {
+	    if (isClosed) {
+		throw new IOException("History is closed");
+	    }
+	    int size = RECORD_HEADER + frame.length;
+	    if (size > segmentBytes) {
+		throw new IOException("Record of " + size + " bytes doesn't fit in a segment");
+	    }
+	    if (active == null || active.end + size > segmentBytes) {
+		roll(sequence);
+	    }
+	    else if (map == null) {
+		// released while idle
+		openActive(active);
+	    }
+	    lastAppendNanos = System.nanoTime();
+	    int pos = active.end;
+	    map.put(pos + RECORD_HEADER, frame);
+	    // sequence goes in last, a record isn't there until it's non zero
+	    map.putLong(pos, sequence);
+	    if (active.records % INDEX_INTERVAL == 0) {
+		active.addIndex(sequence, pos);
+		ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY);
+		entry.putLong(sequence).putInt(pos).flip();
+		indexOut.write(entry);
+	    }
+	    active.records++;
+	    active.end = pos + size;
+	    lastSequence = sequence;
+	    unforced++;
+	    notify = !isDirty;
+	    isDirty = true;
+	}
+	store.appended(this, notify);
+    }
+
+    /***
+     * Starts a new segment; the old one is forced first so everything but the
+     * active segment is always on disk
+     */
+    private void roll(long baseSequence) throws IOException {
+	if (map != null) {
+	    map.force();
+	    indexOut.force(false);
+	    indexOut.close();
+	}
+	Segment s = new Segment(baseSequence, dir.resolve(fileName(baseSequence, LOG_SUFFIX)));
+	segments.add(s);
+	openActive(s);
+	dirtyFrom = 0;
+	while (maxSegments > 0 && segments.size() > maxSegments) {
+	    // readers working from an older copy just find the file gone
+	    Segment oldest = segments.remove(0);
+	    Files.deleteIfExists(oldest.file);
+	    Files.deleteIfExists(dir.resolve(fileName(oldest.baseSequence, INDEX_SUFFIX)));
+	}
+    }
+
+    /***
+     * Drops the active segment's mapping and index handle if nothing has been
+     * appended for idleNanos, so quiet rooms don't hold them. Anything still
+     * unforced is forced first. The next append opens them again.
+     * 
+     * @param idleNanos
+     * @return true if they were released
+     * @throws IOException
+     */
+    synchronized boolean releaseIfIdle(long idleNanos) throws IOException {
+	if (map == null || isClosed || System.nanoTime() - lastAppendNanos < idleNanos) {
+	    return false;
+	}
+	if (unforced > 0) {
+	    map.force(dirtyFrom, active.end - dirtyFrom);
+	    indexOut.force(false);
+	    dirtyFrom = active.end;
+	    unforced = 0;
+	}
+	indexOut.close();
+	indexOut = null;
+	// the mapping itself is released when it's garbage collected
+	map = null;
+	return true;
+    }
+
+    /***
+     * Forces whatever was appended since the last call. The lock is only held to
+     * grab the range, the force itself runs alongside new appends.
+     * 
+     * @return the number of messages forced
+     */
+    int force() throws IOException {
+	MappedByteBuffer m;
+	FileChannel index;
+	int from;
+	int to;
+	int count;
+	synchronized (this) {
+	    isDirty = false;
+	    if (map == null || unforced == 0) {
+		return 0;
+	    }
+	    m = map;
+	    index = indexOut;
+	    from = dirtyFrom;
+	    to = active.end;
+	    count = unforced;
+	    dirtyFrom = to;
+	    unforced = 0;
+	}
+	if (to > from) {
+	    m.force(from, to - from);
+	}
+	try {
+	    index.force(false);
+	}
+	catch (ClosedChannelException e) {
+	    // rolled or released meanwhile, either one forced it first
+	}
+	return count;
+    }
+
+    synchronized int getUnforced() {
+	return unforced;
+    }
+
+    private synchronized List<Segment> snapshot() {
+	List<Segment> view = new ArrayList<Segment>(segments.size());
+	for (Segment s : segments) {
+	    view.add(s.copy());
+	}
+	return view;
+    }
+
+    /***
+     * Works back from the end one index interval at a time, so it doesn't
+     * matter whether sequence numbers are contiguous
+     * 
+     * @param count
+     * @return frames of the last count messages, oldest first
+     * @throws IOException
+     */
+    List<byte[]> readLast(int count) throws IOException {
+	ArrayDeque<byte[]> frames = new ArrayDeque<byte[]>();
+	if (count <= 0) {
+	    return new ArrayList<byte[]>();
+	}
+	List<Segment> view = snapshot();
+	for (int i = view.size() - 1; i >= 0 && frames.size() < count; i--) {
+	    Segment s = view.get(i);
+	    try (FileChannel in = FileChannel.open(s.file, StandardOpenOption.READ)) {
+		int to = s.end;
+		// index entry 0 is the segment's first record, without an index
+		// the segment is one chunk
+		for (int entry = s.indexCount - 1; entry >= -1 && frames.size() < count; entry--) {
+		    int from = entry >= 0 ? s.indexPosition[entry] : 0;
+		    if (from >= to) {
+			continue;
+		    }
+		    List<byte[]> chunk = new ArrayList<byte[]>(INDEX_INTERVAL);
+		    readRecords(in, from, to, 0, Integer.MAX_VALUE, chunk);
+		    for (int c = chunk.size() - 1; c >= 0; c--) {
+			frames.addFirst(chunk.get(c));
+		    }
+		    to = from;
+		}
+	    }
+	    catch (NoSuchFileException e) {
+		// dropped by retention, there's nothing older
+		break;
+	    }
+	}
+	while (frames.size() > count) {
+	    frames.removeFirst();
+	}
+	return new ArrayList<byte[]>(frames);
+    }
+
+    /***
+     * @param afterSequence only messages with a higher sequence are returned
+     * @param max           at most this many, the oldest ones first
+     * @return binary frames, oldest first
+     * @throws IOException
+     */
+    List<byte[]> readSince(long afterSequence, int max) throws IOException {
+	if (afterSequence >= getLastSequence()) {
+	    return Collections.emptyList();
+	}
+	List<Segment> view = snapshot();
+	List<byte[]> frames = new ArrayList<byte[]>();
+	long target = afterSequence + 1;
+	// last segment starting at or before the target
+	int first = 0;
+	for (int i = 0; i < view.size(); i++) {
+	    if (view.get(i).baseSequence <= target) {
+		first = i;
+	    }
+	}
+	for (int i = first; i < view.size() && frames.size() < max; i++) {
+	    Segment s = view.get(i);
+	    int start = i == first ? s.floorPosition(target) : 0;
+	    readSegment(s, start, afterSequence, max, frames);
+	}
+	return frames;
+    }
+
+    private void readSegment(Segment s, int start, long afterSequence, int max, List<byte[]> frames)
+	    throws IOException {
+	try (FileChannel in = FileChannel.open(s.file, StandardOpenOption.READ)) {
+	    readRecords(in, start, s.end, afterSequence, max, frames);
+	}
+	catch (NoSuchFileException e) {
+	    // dropped by retention while we were reading
+	}
+    }
+
+    /***
+     * Reads the records in [from, to) numbered after afterSequence
+     */
+    private static void readRecords(FileChannel in, long from, long to, long afterSequence, int max,
+	    List<byte[]> frames) throws IOException {
+	ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER + Frames.HEADER_SIZE);
+	long pos = from;
+	while (frames.size() < max && pos + header.capacity() <= to) {
+	    header.clear();
+	    readFully(in, header, pos);
+	    long sequence = header.getLong(0);
+	    int length = header.getInt(RECORD_HEADER);
+	    if (sequence == 0 || length <= 0 || pos + header.capacity() + length > to) {
+		return;
+	    }
+	    if (sequence > afterSequence) {
+		byte[] frame = new byte[Frames.HEADER_SIZE + length];
+		ByteBuffer body = ByteBuffer.wrap(frame);
+		readFully(in, body, pos + RECORD_HEADER);
+		frames.add(frame);
+	    }
+	    pos += header.capacity() + length;
+	}
+    }
+
+    private static void readFully(FileChannel in, ByteBuffer buffer, long position) throws IOException {
+	while (buffer.hasRemaining()) {
+	    int n = in.read(buffer, position + buffer.position());
+	    if (n < 0) {
+		throw new IOException("Unexpected end of history segment");
+	    }
+	}
+    }
+
+    @Override
+    public void close() throws IOException {
+	synchronized (this) {
+	    if (isClosed) {
+		return;
+	    }
+	    isClosed = true;
+	}
+	force();
+	synchronized (this) {
+	    if (indexOut != null) {
+		indexOut.close();
+	    }
+	    // the mapping itself is released when it's garbage collected
+	    map = null;
+	}
+	store.closed(this);
+    }
+}
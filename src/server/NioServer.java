@@ -0,0 +1,376 @@
+package server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/***
+ * Non-blocking transport. A small fixed pool of selector loops owns every
+ * connection; each loop reads and decodes frames and hands the payloads to
+ * the connection's ServerThread, and writes whatever the rooms queued for its
+ * connections. No thread is created per client.
+ */
+class NioServer {
+    private final SocketServer server;
+    private final IoLoop[] loops;
+    private int nextLoop = 0;
+    private final static Logger log = Logger.getLogger(NioServer.class.getName());
+
+    NioServer(SocketServer server, int loopCount) throws IOException {
+	this.server = server;
+	loops = new IoLoop[Math.max(1, loopCount)];
+	for (int i = 0; i < loops.length; i++) {
+	    loops[i] = new IoLoop();
+	    Thread t = new Thread(loops[i], "nio-loop-" + i);
+	    t.setDaemon(true);
+	    t.start();
+	}
+    }
+
+    /***
+     * Accepts connections until the server stops. Runs on the caller's thread
+     * the same way the blocking accept loop in SocketServer does.
+     * 
+     * @param port
+     * @throws IOException
+     */
+    void start(int port) throws IOException {
+	try (ServerSocketChannel serverSocket = ServerSocketChannel.open()) {
+	    serverSocket.bind(new InetSocketAddress(port), SocketServer.BACKLOG);
+	    log.log(Level.INFO, "NIO transport using " + loops.length + " io loops");
+	    while (SocketServer.isRunning) {
+		try {
+		    SocketChannel client = serverSocket.accept();
+		    log.log(Level.FINE, "Client connecting...");
+		    client.configureBlocking(false);
+		    client.setOption(StandardSocketOptions.TCP_NODELAY, true);
+		    ServerThread thread = new ServerThread(server);
+		    NioClientChannel channel = new NioClientChannel(client, thread, nextLoop());
+		    thread.setChannel(channel);
+		    server.startHandshake(thread);
+		    channel.register();
+		    log.log(Level.FINE, "Client added to clients pool");
+		}
+		catch (IOException e) {
+		    e.printStackTrace();
+		}
+	    }
+	}
+	finally {
+	    for (IoLoop loop : loops) {
+		loop.shutdown();
+	    }
+	}
+    }
+
+    private IoLoop nextLoop() {
+	IoLoop loop = loops[nextLoop];
+	nextLoop = (nextLoop + 1) % loops.length;
+	return loop;
+    }
+
+    private static class IoLoop implements Runnable {
+	private final Selector selector;
+	private final Queue<NioClientChannel> registrations = new ConcurrentLinkedQueue<NioClientChannel>();
+	private final Queue<NioClientChannel> pendingWrites = new ConcurrentLinkedQueue<NioClientChannel>();
+	private final ByteBuffer[] gather = new ByteBuffer[OutboundQueue.MAX_BATCH_FRAMES];
+
+	IoLoop() throws IOException {
+	    selector = Selector.open();
+	}
+
+	void register(NioClientChannel channel) {
+	    registrations.add(channel);
+	    selector.wakeup();
+	}
+
+	void requestWrite(NioClientChannel channel) {
+	    pendingWrites.add(channel);
+	    selector.wakeup();
+	}
+
+	void shutdown() {
+	    try {
+		selector.close();
+	    }
+	    catch (IOException e) {
+		// nothing left to do with it
+	    }
+	}
+
+	@Override
+	public void run() {
+	    try {
+		while (selector.isOpen()) {
+		    selector.select();
+		    NioClientChannel channel;
+		    while ((channel = registrations.poll()) != null) {
+			channel.attach(selector);
+		    }
+		    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+		    while (keys.hasNext()) {
+			SelectionKey key = keys.next();
+			keys.remove();
+			channel = (NioClientChannel) key.attachment();
+			try {
+			    if (key.isValid() && key.isReadable()) {
+				channel.read();
+			    }
+			    if (key.isValid() && key.isWritable()) {
+				channel.flush(gather);
+			    }
+			}
+			catch (CancelledKeyException e) {
+			    // closed by another thread since the select
+			}
+			catch (RuntimeException e) {
+			    channel.fail(e);
+			}
+		    }
+		    // writes go last so everything queued during this tick's reads
+		    // leaves in one gathering write per client
+		    while ((channel = pendingWrites.poll()) != null) {
+			try {
+			    channel.flush(gather);
+			}
+			catch (RuntimeException e) {
+			    channel.fail(e);
+			}
+		    }
+		}
+	    }
+	    catch (ClosedSelectorException e) {
+		// server shutting down
+	    }
+	    catch (IOException e) {
+		e.printStackTrace();
+	    }
+	    log.log(Level.INFO, Thread.currentThread().getName() + " stopped");
+	}
+    }
+
+    private static class NioClientChannel implements ClientChannel {
+	private final SocketChannel socket;
+	private final ServerThread owner;
+	private final IoLoop loop;
+	private final OutboundQueue outbound = new OutboundQueue();
+	// frames taken off the queue but not fully written, only touched by the
+	// owning loop
+	private final ArrayDeque<ByteBuffer> unsent = new ArrayDeque<ByteBuffer>();
+	private final AtomicBoolean writeRequested = new AtomicBoolean();
+	private final static int READ_BUFFER = 4096;
+	// grows to fit a large frame, back to READ_BUFFER once it's been read
+	private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER);
+	private SelectionKey key;// only touched by the owning loop
+	private volatile boolean closed = false;
+
+	NioClientChannel(SocketChannel socket, ServerThread owner, IoLoop loop) {
+	    this.socket = socket;
+	    this.owner = owner;
+	    this.loop = loop;
+	}
+
+	void register() {
+	    loop.register(this);
+	}
+
+	void attach(Selector selector) {
+	    try {
+		key = socket.register(selector, SelectionKey.OP_READ, this);
+		if (!outbound.isEmpty()) {
+		    requestWrite();
+		}
+	    }
+	    catch (IOException e) {
+		owner.cleanup();
+	    }
+	}
+
+	@Override
+	public boolean send(byte[] frame) {
+	    if (closed) {
+		return false;
+	    }
+	    if (!outbound.offer(frame)) {
+		log.log(Level.INFO, "Outbound queue full, disconnecting client " + owner.getId());
+		// not cleanup(), the caller may hold sequenceLock and cleanup needs
+		// the room lock. flush() finishes the job on the loop.
+		close();
+		loop.requestWrite(this);
+		return false;
+	    }
+	    requestWrite();
+	    return true;
+	}
+
+	/***
+	 * Drops just this connection after something unexpected went wrong
+	 * handling it, the loop and its other connections carry on
+	 * 
+	 * @param e
+	 */
+	void fail(RuntimeException e) {
+	    log.log(Level.WARNING, "Dropping client " + owner.getId() + " after an unexpected error", e);
+	    owner.cleanup();
+	}
+
+	private void requestWrite() {
+	    if (writeRequested.compareAndSet(false, true)) {
+		loop.requestWrite(this);
+	    }
+	}
+
+	/***
+	 * Writes as much of the outbound queue as the socket accepts using
+	 * gathering writes of up to MAX_BATCH_FRAMES frames and about
+	 * MAX_BATCH_BYTES, like the blocking writer. Anything left over
+	 * waits for OP_WRITE. Cleans up channels send() closed. Only called from
+	 * the owning loop.
+	 * 
+	 * @param gather the loop's scratch array
+	 */
+	void flush(ByteBuffer[] gather) {
+	    writeRequested.set(false);
+	    if (closed) {
+		// does nothing if whoever closed it already cleaned up
+		owner.cleanup();
+		return;
+	    }
+	    if (key == null) {
+		return;
+	    }
+	    try {
+		while (true) {
+		    int n = 0;
+		    long size = 0;
+		    for (ByteBuffer b : unsent) {
+			gather[n++] = b;
+			size += b.remaining();
+		    }
+		    byte[] frame;
+		    while (n < gather.length && size < OutboundQueue.MAX_BATCH_BYTES
+			    && (frame = outbound.poll()) != null) {
+			ByteBuffer b = ByteBuffer.wrap(frame);
+			unsent.add(b);
+			gather[n++] = b;
+			size += frame.length;
+		    }
+		    if (n == 0) {
+			key.interestOps(SelectionKey.OP_READ);
+			return;
+		    }
+		    long start = System.nanoTime();
+		    long bytes = socket.write(gather, 0, n);
+		    long nanos = System.nanoTime() - start;
+		    Arrays.fill(gather, 0, n, null);
+		    int written = 0;
+		    while (!unsent.isEmpty() && !unsent.peek().hasRemaining()) {
+			unsent.poll();
+			written++;
+		    }
+		    outbound.recordWrite(written, bytes, nanos);
+		    if (!unsent.isEmpty()) {
+			key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+			return;
+		    }
+		}
+	    }
+	    catch (IOException e) {
+		log.log(Level.INFO, "Error sending message to client (most likely disconnected)");
+		owner.cleanup();
+	    }
+	    catch (CancelledKeyException e) {
+		// closed by another thread, there's nobody left to write to
+	    }
+	}
+
+	/***
+	 * Reads whatever is available and dispatches every complete frame. Only
+	 * called from the owning loop.
+	 */
+	void read() {
+	    int n;
+	    try {
+		n = socket.read(readBuffer);
+	    }
+	    catch (IOException e) {
+		n = -1;
+	    }
+	    if (n < 0) {
+		log.log(Level.INFO, "Client Disconnected");
+		owner.cleanup();
+		return;
+	    }
+	    readBuffer.flip();
+	    try {
+		while (!closed && readBuffer.remaining() >= Frames.HEADER_SIZE) {
+		    int length = Frames.checkLength(readBuffer.getInt(readBuffer.position()));
+		    int frameSize = Frames.HEADER_SIZE + length;
+		    if (readBuffer.remaining() < frameSize) {
+			if (readBuffer.capacity() < frameSize) {
+			    // partial frame bigger than our buffer, move it into one that fits
+			    ByteBuffer bigger = ByteBuffer.allocate(frameSize);
+			    bigger.put(readBuffer);
+			    readBuffer = bigger;
+			    return;
+			}
+			break;
+		    }
+		    int start = readBuffer.position() + Frames.HEADER_SIZE;
+		    readBuffer.position(start + length);
+		    owner.processFrame(readBuffer.array(), start, length);
+		}
+	    }
+	    catch (IOException e) {
+		log.log(Level.INFO, "Bad frame from client, closing: " + e.getMessage());
+		owner.cleanup();
+		return;
+	    }
+	    if (readBuffer.capacity() > READ_BUFFER && readBuffer.remaining() <= READ_BUFFER) {
+		// the large frame is done, don't keep up to MAX_FRAME per idle client
+		readBuffer = ByteBuffer.allocate(READ_BUFFER).put(readBuffer);
+	    }
+	    else {
+		readBuffer.compact();
+	    }
+	}
+
+	@Override
+	public OutboundQueue getOutbound() {
+	    return outbound;
+	}
+
+	@Override
+	public boolean isClosed() {
+	    return closed;
+	}
+
+	@Override
+	public void close() {
+	    closed = true;
+	    outbound.clear();
+	    try {
+		// closing the channel also cancels its key
+		socket.close();
+	    }
+	    catch (IOException e) {
+		log.log(Level.INFO, "Client already closed");
+	    }
+	}
+    }
+}
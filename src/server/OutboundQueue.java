@@ -0,0 +1,212 @@
+package server;
+
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/***
+ * Bounded queue of frames waiting to go out to one client. Rooms only ever
+ * enqueue, the transport's writer drains, so a client with a full TCP buffer
+ * can't hold up delivery to the rest of the room. Offering never waits,
+ * whatever the policy: it runs on room and timer threads, often under a room's
+ * sequenceLock.
+ */
+class OutboundQueue {
+    final static int CAPACITY = Integer.getInteger("server.outbound.capacity", 1024);
+    final static OverflowPolicy POLICY = policy(System.getProperty("server.outbound.policy"));
+    final static long BLOCK_MILLIS = Long.getLong("server.outbound.blockMillis", 1000);
+    // upper bounds for how much one coalesced write may carry
+    final static int MAX_BATCH_FRAMES = 64;
+    final static int MAX_BATCH_BYTES = 64 * 1024;
+    // server wide write counters
+    private final static LongAdder totalWrites = new LongAdder();
+    private final static LongAdder totalFramesWritten = new LongAdder();
+    private final static Logger log = Logger.getLogger(OutboundQueue.class.getName());
+
+    private final static long NOT_FULL = Long.MIN_VALUE;
+
+    private final ArrayBlockingQueue<byte[]> frames;
+    private final int capacity;
+    private final OverflowPolicy policy;
+    // BLOCK only: when the queue last reached capacity, NOT_FULL once the
+    // writer has taken it back under
+    private volatile long fullSince = NOT_FULL;
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile int highWater = 0;
+
+    OutboundQueue() {
+	this(CAPACITY, POLICY);
+    }
+
+    OutboundQueue(int capacity, OverflowPolicy policy) {
+	// BLOCK keeps queueing past capacity for a while, up to twice it
+	frames = new ArrayBlockingQueue<byte[]>(policy == OverflowPolicy.BLOCK ? capacity * 2 : capacity);
+	this.capacity = capacity;
+	this.policy = policy;
+    }
+
+    private static OverflowPolicy policy(String name) {
+	if (name != null) {
+	    try {
+		return OverflowPolicy.valueOf(name.toUpperCase(Locale.ROOT));
+	    }
+	    catch (IllegalArgumentException e) {
+		log.log(Level.WARNING, "Unknown overflow policy " + name + ", using " + OverflowPolicy.DISCONNECT);
+	    }
+	}
+	return OverflowPolicy.DISCONNECT;
+    }
+
+    /***
+     * Queues a frame, applying the overflow policy if the queue is full
+     * 
+     * @param frame
+     * @return false if the client should be disconnected
+     */
+    boolean offer(byte[] frame) {
+	if (policy == OverflowPolicy.BLOCK) {
+	    if (!isWithinGrace() || !frames.offer(frame)) {
+		return false;
+	    }
+	}
+	else if (!frames.offer(frame)) {
+	    switch (policy) {
+	    case DROP_OLDEST:
+		while (!frames.offer(frame)) {
+		    if (frames.poll() != null) {
+			dropped.incrementAndGet();
+			ServerMetrics.framesDropped.increment();
+		    }
+		}
+		break;
+	    case DISCONNECT:
+	    default:
+		return false;
+	    }
+	}
+	int depth = frames.size();
+	if (depth > highWater) {
+	    highWater = depth;
+	}
+	return true;
+    }
+
+    /***
+     * BLOCK: a queue at capacity is fine for BLOCK_MILLIS, the deadline starts
+     * when it fills and is lifted once the writer drains it below capacity
+     * 
+     * @return false once the writer has been stuck for too long
+     */
+    private boolean isWithinGrace() {
+	if (frames.size() < capacity) {
+	    return true;
+	}
+	long now = System.nanoTime();
+	long since = fullSince;
+	if (since == NOT_FULL) {
+	    fullSince = now;
+	    return true;
+	}
+	return now - since <= TimeUnit.MILLISECONDS.toNanos(BLOCK_MILLIS);
+    }
+
+    /***
+     * Called by the writer after taking frames
+     */
+    private void drained() {
+	if (fullSince != NOT_FULL && frames.size() < capacity) {
+	    fullSince = NOT_FULL;
+	}
+    }
+
+    /***
+     * Waits for the next frame
+     * 
+     * @return
+     * @throws InterruptedException
+     */
+    byte[] take() throws InterruptedException {
+	byte[] frame = frames.take();
+	drained();
+	return frame;
+    }
+
+    byte[] poll() {
+	byte[] frame = frames.poll();
+	if (frame != null) {
+	    drained();
+	}
+	return frame;
+    }
+
+    /***
+     * Moves queued frames into the array, stopping at its length or once the
+     * frames collected reach maxBytes
+     * 
+     * @param into     destination, filled from index start
+     * @param start    first free slot
+     * @param maxBytes soft cap on the total size collected
+     * @return the number of slots now filled
+     */
+    int drain(byte[][] into, int start, int maxBytes) {
+	int count = start;
+	int size = 0;
+	for (int i = 0; i < start; i++) {
+	    size += into[i].length;
+	}
+	byte[] frame;
+	while (count < into.length && size < maxBytes && (frame = frames.poll()) != null) {
+	    into[count++] = frame;
+	    size += frame.length;
+	}
+	drained();
+	return count;
+    }
+
+    /***
+     * Records one write call to the socket that carried the given number of
+     * frames
+     * 
+     * @param frameCount
+     * @param bytes      bytes the call wrote
+     * @param nanos      how long it took
+     */
+    void recordWrite(int frameCount, long bytes, long nanos) {
+	totalWrites.increment();
+	totalFramesWritten.add(frameCount);
+	ServerMetrics.bytesOut.add(bytes);
+	ServerMetrics.writeNanos.record(nanos);
+    }
+
+    boolean isEmpty() {
+	return frames.isEmpty();
+    }
+
+    void clear() {
+	frames.clear();
+    }
+
+    int getDepth() {
+	return frames.size();
+    }
+
+    int getHighWater() {
+	return highWater;
+    }
+
+    long getDropped() {
+	return dropped.get();
+    }
+
+    static long getTotalWrites() {
+	return totalWrites.sum();
+    }
+
+    static long getTotalFramesWritten() {
+	return totalFramesWritten.sum();
+    }
+}
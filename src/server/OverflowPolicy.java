@@ -0,0 +1,17 @@
+package server;
+
+/***
+ * What a client's outbound queue does when it's full
+ */
+public enum OverflowPolicy {
+    /** discard the oldest queued frame to make room */
+    DROP_OLDEST,
+    /** treat the client as dead and disconnect it */
+    DISCONNECT,
+    /**
+     * keep queueing past capacity (up to twice it) and disconnect if the writer
+     * hasn't brought the queue back under capacity within
+     * server.outbound.blockMillis. Senders never wait.
+     */
+    BLOCK
+}
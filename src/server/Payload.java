@@ -1,5 +1,6 @@
 package server;
 import java.io.Serializable;
+import java.util.List;
 
 public class Payload implements Serializable {
 
@@ -38,6 +39,34 @@ public class Payload implements Serializable {
 	return this.payloadType;
     }
 
+    /**
+     * Member names for ROSTER (everyone in the room) and JOINED/LEFT (batched
+     * presence changes)
+     */
+    private List<String> clientNames;
+
+    public void setClientNames(List<String> names) {
+	this.clientNames = names;
+    }
+
+    public List<String> getClientNames() {
+	return clientNames;
+    }
+
+    /**
+     * Per room sequence number of a MESSAGE, 0 when not set (e.g. messages from
+     * another node). On a ROSTER, the number to continue counting from.
+     */
+    private long sequence;
+
+    public void setSequence(long sequence) {
+	this.sequence = sequence;
+    }
+
+    public long getSequence() {
+	return sequence;
+    }
+
     private int number;
 
     public void setNumber(int n) {
@@ -0,0 +1,28 @@
+package server;
+
+import java.io.IOException;
+
+/***
+ * Turns Payloads into frames and back. Frames picks the codec for incoming data
+ * by looking at the first byte of the body, so peers using different codecs
+ * can still talk to each other.
+ */
+public interface PayloadCodec {
+    /***
+     * @param p
+     * @return a complete frame, length prefix included, ready to be written
+     * @throws IOException
+     */
+    byte[] encode(Payload p) throws IOException;
+
+    /***
+     * Decodes a frame body (no length prefix)
+     * 
+     * @param body
+     * @param offset
+     * @param length
+     * @return
+     * @throws IOException if the body is malformed
+     */
+    Payload decode(byte[] body, int offset, int length) throws IOException;
+}
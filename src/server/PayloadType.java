@@ -1,5 +1,13 @@
 package server;
 
 public enum PayloadType {
-    CONNECT, DISCONNECT, MESSAGE, CLEAR_PLAYERS
+    CONNECT, DISCONNECT, MESSAGE, CLEAR_PLAYERS, ROSTER, JOINED, LEFT,
+    // the room lives on another node, message is "host:port command" and the
+    // client should reconnect there and repeat the command
+    REDIRECT,
+    // to the client: its resume token in message. From a reconnecting client:
+    // the token, its name and the sequence of the last message it got
+    RESUME,
+    // heartbeat, whoever gets a PING answers with a PONG
+    PING, PONG
 }
\ No newline at end of file
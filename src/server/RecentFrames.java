@@ -0,0 +1,210 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/***
+ * Ring buffer of a room's most recent broadcasts, replayed to clients when they
+ * join. Bounded by a per room byte budget and by a cap on the bytes held by all
+ * rooms together. When an add takes the total over the cap, the largest
+ * buffers give up their oldest entries until it's back under, but none goes
+ * below the floor: server.replay.minRoomBytes, or less once that many bytes for
+ * every room holding anything wouldn't fit in the cap.
+ * 
+ * Changes to a buffer (adds, evictions, clear) are serialized on the buffer
+ * itself, and an add releases its own buffer before evicting from others, so
+ * no thread ever holds two. Readers never lock: each slot remembers its
+ * position, so a reader that loses a race with a change just skips the
+ * overwritten slot.
+ */
+final class RecentFrames {
+    final static int ROOM_BYTES = Integer.getInteger("server.replay.roomBytes", 256 * 1024);
+    final static long TOTAL_BYTES = Long.getLong("server.replay.totalBytes", 64L * 1024 * 1024);
+    // what every room may keep while others are evicted to honor the cap
+    final static int MIN_ROOM_BYTES = Integer.getInteger("server.replay.minRoomBytes", 16 * 1024);
+    // how many messages a joining client is sent
+    final static int REPLAY_COUNT = Integer.getInteger("server.replay.count", 50);
+    private final static int SLOTS = 1024;// power of two
+    private final static int MASK = SLOTS - 1;
+    private final static AtomicLong totalBytes = new AtomicLong();
+    // buffers holding at least one entry, the candidates for eviction
+    private final static Set<RecentFrames> holding = ConcurrentHashMap.newKeySet();
+
+    private static class Entry {
+	final long position;
+	final Broadcast broadcast;
+	final int size;
+
+	Entry(long position, Broadcast broadcast, int size) {
+	    this.position = position;
+	    this.broadcast = broadcast;
+	    this.size = size;
+	}
+    }
+
+    private final AtomicReferenceArray<Entry> slots = new AtomicReferenceArray<Entry>(SLOTS);
+    // positions [tail, head) are live
+    private volatile long head = 0;
+    private volatile long tail = 0;
+    // written under the buffer's lock, read by other rooms picking what to evict
+    private volatile long bytes = 0;
+
+    /***
+     * @return bytes held by every room's buffer
+     */
+    static long getTotalBytes() {
+	return totalBytes.get();
+    }
+
+    /***
+     * @return how far eviction for the global cap may take a buffer
+     */
+    private static long floor() {
+	return Math.min(MIN_ROOM_BYTES, TOTAL_BYTES / Math.max(1, holding.size()));
+    }
+
+    /***
+     * Adds a broadcast, evicting old ones as needed
+     * 
+     * @param broadcast
+     * @param size      its encoded size
+     */
+    void add(Broadcast broadcast, int size) {
+	if (size > ROOM_BYTES) {
+	    return;
+	}
+	synchronized (this) {
+	    long h = head;
+	    if (h - tail == SLOTS) {
+		evictOldest();
+	    }
+	    slots.set((int) (h & MASK), new Entry(h, broadcast, size));
+	    if (bytes == 0) {
+		holding.add(this);
+	    }
+	    bytes += size;
+	    totalBytes.addAndGet(size);
+	    head = h + 1;
+	    while (tail < head && bytes > ROOM_BYTES) {
+		evictOldest();
+	    }
+	}
+	if (totalBytes.get() > TOTAL_BYTES) {
+	    enforceCap();
+	}
+    }
+
+    /***
+     * Trims the largest buffers, each down to the next largest (or the floor),
+     * until the total is under the cap
+     */
+    private static void enforceCap() {
+	while (totalBytes.get() > TOTAL_BYTES) {
+	    RecentFrames largest = null;
+	    long next = 0;
+	    for (RecentFrames r : holding) {
+		long b = r.bytes;
+		if (largest == null || b > largest.bytes) {
+		    if (largest != null) {
+			next = Math.max(next, largest.bytes);
+		    }
+		    largest = r;
+		}
+		else {
+		    next = Math.max(next, b);
+		}
+	    }
+	    long floor = floor();
+	    if (largest == null || largest.bytes <= floor) {
+		// only possible while adds are racing us, they'll trim again
+		return;
+	    }
+	    largest.trim(Math.max(floor, next));
+	}
+    }
+
+    /***
+     * Evicts the oldest entry, then more until this holds at most target bytes
+     * or the total is under the cap. Always taking one keeps buffers tied for
+     * largest from stalling the caller.
+     */
+    private synchronized void trim(long target) {
+	if (bytes <= floor()) {
+	    return;
+	}
+	do {
+	    evictOldest();
+	} while (tail < head && bytes > target && totalBytes.get() > TOTAL_BYTES);
+    }
+
+    // caller holds the buffer's lock
+    private void evictOldest() {
+	long t = tail;
+	Entry e = slots.getAndSet((int) (t & MASK), null);
+	if (e != null && e.position == t) {
+	    bytes -= e.size;
+	    totalBytes.addAndGet(-e.size);
+	    if (bytes == 0) {
+		holding.remove(this);
+	    }
+	}
+	tail = t + 1;
+    }
+
+    /***
+     * @param count
+     * @return up to count of the newest broadcasts, oldest first
+     */
+    List<Broadcast> last(int count) {
+	long h = head;
+	long from = Math.max(tail, h - count);
+	List<Broadcast> recent = new ArrayList<Broadcast>((int) Math.max(0, h - from));
+	for (long p = from; p < h; p++) {
+	    Entry e = slots.get((int) (p & MASK));
+	    if (e != null && e.position == p) {
+		recent.add(e.broadcast);
+	    }
+	}
+	return recent;
+    }
+
+    /***
+     * @param sequence
+     * @return the broadcasts numbered after sequence, oldest first, or null if
+     *         the buffer doesn't go back that far and some may be missing.
+     *         Unnumbered ones (from other nodes) are left out.
+     */
+    List<Broadcast> since(long sequence) {
+	long h = head;
+	List<Broadcast> missed = new ArrayList<Broadcast>();
+	boolean isComplete = false;
+	for (long p = tail; p < h; p++) {
+	    Entry e = slots.get((int) (p & MASK));
+	    if (e == null || e.position != p || e.broadcast.getPayload().getSequence() == 0) {
+		continue;
+	    }
+	    if (e.broadcast.getPayload().getSequence() <= sequence) {
+		// holds the last one the client has, nothing before it matters
+		isComplete = true;
+		missed.clear();
+	    }
+	    else {
+		missed.add(e.broadcast);
+	    }
+	}
+	return isComplete ? missed : null;
+    }
+
+    /***
+     * Releases everything, used when the room closes
+     */
+    synchronized void clear() {
+	while (tail < head) {
+	    evictOldest();
+	}
+    }
+}
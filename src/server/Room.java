@@ -1,71 +1,346 @@
 package server;
 
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class Room implements AutoCloseable {
-    private static SocketServer server;// used to refer to accessible server functions
+    private final SocketServer server;// used to refer to accessible server functions
     private String name;
     private final static Logger log = Logger.getLogger(Room.class.getName());
+    private final static Logger trace = ServerLogging.TRACE;
+
+    // sender name used for replies that come from the server itself
+    final static String SERVER_NAME = "Server";
 
     // Commands
-    private final static String COMMAND_TRIGGER = "/";
     private final static String CREATE_ROOM = "createroom";
     private final static String JOIN_ROOM = "joinroom";
-
-    public Room(String name) {
-	this.name = name;
+    private final static String LEAVE_ROOM = "leaveroom";
+    private final static String HISTORY = "history";
+    // most messages a single /history request returns
+    private final static int HISTORY_MAX = 500;
+    private final static int HISTORY_DEFAULT = 50;
+    private final static CommandRegistry commands = new CommandRegistry();
+    static {
+	commands.register(CREATE_ROOM, (room, client, args) -> {
+	    String roomName = firstWord(args);
+	    if (roomName == null) {
+		client.send(SERVER_NAME, "Usage: /" + CREATE_ROOM + " <room name>");
+	    }
+	    else if (room.server.redirectIfRemote(roomName, client, "/" + CREATE_ROOM + " " + roomName)) {
+		// the owning node creates it
+	    }
+	    else if (room.server.createNewRoom(roomName)) {
+		room.joinRoom(roomName, client);
+	    }
+	});
+	commands.register(JOIN_ROOM, (room, client, args) -> {
+	    String roomName = firstWord(args);
+	    if (roomName == null) {
+		client.send(SERVER_NAME, "Usage: /" + JOIN_ROOM + " <room name>");
+	    }
+	    else if (!room.server.redirectIfRemote(roomName, client, "/" + JOIN_ROOM + " " + roomName)) {
+		room.joinRoom(roomName, client);
+	    }
+	});
+	commands.register(LEAVE_ROOM, (room, client, args) -> room.joinLobby(client));
+	commands.register(HISTORY, (room, client, args) -> room.sendHistory(client, args));
     }
 
-    public static void setServer(SocketServer server) {
-	Room.server = server;
+    /***
+     * @param name
+     * @param server the server this room belongs to, several can share a JVM
+     */
+    public Room(String name, SocketServer server) {
+	this.name = name;
+	this.server = server;
     }
 
     public String getName() {
 	return name;
     }
 
-    private List<ServerThread> clients = new ArrayList<ServerThread>();
+    // Copy on write: broadcasts far outnumber joins and leaves, so readers
+    // iterate a snapshot without locking and only mutators (which synchronize on
+    // the room) pay for a copy
+    private final List<ServerThread> clients = new CopyOnWriteArrayList<ServerThread>();
+
+    // Messages are numbered and appended to the history under sequenceLock, and
+    // broadcast before it's released, so every member and the log see the same
+    // order. The log is opened on first use. Lock order is room then
+    // sequenceLock, never the other way around.
+    private final Object sequenceLock = new Object();
+    private MessageLog history;
+    private boolean isHistoryOpen = false;
+    private long lastSequence = 0;
+    // highest number handed out by a room closed in this process, so a room
+    // reopened under the same name carries on past it
+    private final static AtomicLong retiredSequence = new AtomicLong();
+    // what a joining client is shown, also written under sequenceLock
+    private final RecentFrames recent = new RecentFrames();
+
+    // Presence changes not yet sent to the room, guarded by the room lock and
+    // flushed together every PRESENCE_MILLIS
+    final static long PRESENCE_MILLIS = Long.getLong("server.presenceMillis", 50);
+    // keep roster and presence frames well under Frames.MAX_FRAME: at most this
+    // many names, and about CHUNK_BYTES of them (a name is at most
+    // Frames.MAX_TEXT characters of 3 bytes, so that plus the message still fits)
+    private final static int ROSTER_CHUNK = 4096;
+    private final static int CHUNK_BYTES = Frames.MAX_FRAME / 4;
+    private final Set<String> pendingJoins = new LinkedHashSet<String>();
+    private final Set<String> pendingLeaves = new LinkedHashSet<String>();
+    private boolean presenceScheduled = false;
+
+    int getMemberCount() {
+	return clients.size();
+    }
+
+    List<ServerThread> getClients() {
+	return new ArrayList<ServerThread>(clients);
+    }
+
+    /***
+     * @param client
+     * @return false if this room has already been closed
+     */
+    protected boolean addClient(ServerThread client) {
+	return addClient(client, 0);
+    }
 
-    protected synchronized void addClient(ServerThread client) {
+    /***
+     * @param client
+     * @param afterSequence last message a resuming client already has, 0 for a
+     *                      fresh join
+     * @return false if this room has already been closed
+     */
+    synchronized boolean addClient(ServerThread client, long afterSequence) {
+	if (name == null) {
+	    return false;
+	}
 	client.setCurrentRoom(this);
-	if (clients.indexOf(client) > -1) {
+	if (clients.contains(client)) {
 	    log.log(Level.INFO, "Attempting to add a client that already exists");
 	}
 	else {
-	    clients.add(client);
-	    if (client.getClientName() != null) {
-		client.sendClearList();
-		sendConnectionStatus(client, true, "joined the room " + getName());
-		updateClientList(client);
+	    // under the sequence lock so no message lands between the replay and
+	    // the client's first live one
+	    synchronized (sequenceLock) {
+		clients.add(client);
+		if (client.getClientName() != null) {
+		    queuePresence(client.getClientName(), true);
+		    replay(client, afterSequence);
+		}
+	    }
+	}
+	return true;
+    }
+
+    /***
+     * Sends the new member everyone the room has already been told about in as
+     * few frames as possible. Changes still waiting in the presence batch
+     * (including the new member itself) reach it with that batch like everyone
+     * else.
+     * 
+     * @param client
+     * @param sequence where the client's count of this room's messages starts
+     */
+    private void sendRoster(ServerThread client, long sequence) {
+	List<String> names = new ArrayList<String>(clients.size() + pendingLeaves.size());
+	for (ServerThread c : clients) {
+	    String n = c.getClientName();
+	    if (n != null && !pendingJoins.contains(n)) {
+		names.add(n);
+	    }
+	}
+	names.addAll(pendingLeaves);
+	// first chunk replaces the client's list, any others add to it
+	List<List<String>> chunks = chunk(names);
+	for (int i = 0; i < chunks.size(); i++) {
+	    boolean isSent = i == 0 ? client.sendRoster(chunks.get(i), sequence)
+		    : client.sendNames(PayloadType.JOINED, chunks.get(i), null);
+	    if (!isSent) {
+		break;
+	    }
+	}
+    }
+
+    /***
+     * Splits a list of names for sending, see ROSTER_CHUNK. A name longer than
+     * CHUNK_BYTES gets a chunk to itself.
+     * 
+     * @param names
+     * @return at least one chunk, each its own ArrayList (subList views aren't
+     *         serializable for the fallback codec)
+     */
+    static List<List<String>> chunk(List<String> names) {
+	List<List<String>> chunks = new ArrayList<List<String>>();
+	List<String> chunk = new ArrayList<String>();
+	long bytes = 0;
+	for (String n : names) {
+	    // worst case for either codec, plus the length prefix
+	    long size = 3L * n.length() + 5;
+	    if (!chunk.isEmpty() && (chunk.size() == ROSTER_CHUNK || bytes + size > CHUNK_BYTES)) {
+		chunks.add(chunk);
+		chunk = new ArrayList<String>();
+		bytes = 0;
 	    }
+	    chunk.add(n);
+	    bytes += size;
 	}
+	chunks.add(chunk);
+	return chunks;
     }
 
-    private void updateClientList(ServerThread client) {
-	Iterator<ServerThread> iter = clients.iterator();
-	while (iter.hasNext()) {
-	    ServerThread c = iter.next();
-	    if (c != client) {
-		boolean messageSent = client.sendConnectionStatus(c.getClientName(), true, null);
+    /***
+     * Sends a joining client the roster and what it missed: the newest
+     * REPLAY_COUNT messages, or for a resuming client everything after
+     * afterSequence, from the recent frames if they go back far enough and
+     * otherwise from the history (up to HISTORY_MAX). The roster carries the
+     * sequence number the replay continues from, so the client's count always
+     * lines up with this room's. Messages from other nodes aren't numbered here
+     * and aren't part of a resume. Caller must hold sequenceLock.
+     * 
+     * @param client
+     * @param afterSequence
+     */
+    private void replay(ServerThread client, long afterSequence) {
+	MessageLog messageLog = history();
+	if (afterSequence > 0) {
+	    if (afterSequence >= lastSequence) {
+		// missed nothing, or the room was recreated and counts from here
+		sendRoster(client, lastSequence);
+		return;
+	    }
+	    List<Broadcast> missed = recent.since(afterSequence);
+	    if (missed != null) {
+		sendRoster(client, afterSequence);
+		client.sendBroadcasts(missed);
+		return;
+	    }
+	    if (messageLog != null) {
+		try {
+		    List<byte[]> stored = messageLog.readSince(afterSequence, HISTORY_MAX);
+		    sendRoster(client, afterSequence);
+		    client.sendFrames(stored);
+		    return;
+		}
+		catch (IOException e) {
+		    log.log(Level.WARNING, "Failed to read the history of " + name, e);
+		}
 	    }
 	}
+	List<Broadcast> last = recent.last(RecentFrames.REPLAY_COUNT);
+	long start = lastSequence;
+	for (Broadcast b : last) {
+	    long sequence = b.getPayload().getSequence();
+	    if (sequence > 0) {
+		start = sequence - 1;
+		break;
+	    }
+	}
+	sendRoster(client, start);
+	client.sendBroadcasts(last);
     }
 
     protected synchronized void removeClient(ServerThread client) {
-	clients.remove(client);
+	if (!clients.remove(client)) {
+	    return;
+	}
 	if (clients.size() > 0) {
-	    // sendMessage(client, "left the room");
-	    sendConnectionStatus(client, false, "left the room " + getName());
+	    if (client.getClientName() != null) {
+		queuePresence(client.getClientName(), false);
+	    }
 	}
 	else {
 	    cleanupEmptyRoom();
 	}
     }
 
+    /***
+     * Drops clients whose sends failed during a broadcast, or that the heartbeat
+     * found dead, all in one copy of the member list. Some may have left or
+     * been dropped by another broadcast already; only the ones still here are
+     * counted and announced.
+     * 
+     * @param failed
+     */
+    synchronized void removeFailedClients(List<ServerThread> failed) {
+	// members only change under the room lock, so this stays accurate
+	List<ServerThread> removed = new ArrayList<ServerThread>(failed.size());
+	for (ServerThread c : failed) {
+	    if (clients.contains(c)) {
+		removed.add(c);
+	    }
+	}
+	if (removed.isEmpty()) {
+	    return;
+	}
+	clients.removeAll(removed);
+	log.log(Level.INFO, "Removed " + removed.size() + " unreachable clients from " + name);
+	if (clients.isEmpty()) {
+	    cleanupEmptyRoom();
+	    return;
+	}
+	for (ServerThread c : removed) {
+	    if (c.getClientName() != null) {
+		queuePresence(c.getClientName(), false);
+	    }
+	}
+    }
+
+    /***
+     * Records a join or leave for the next presence batch. A join and a leave of
+     * the same name inside one window cancel out, so reconnect storms don't turn
+     * into O(n^2) traffic. Caller must hold the room lock.
+     * 
+     * @param clientName
+     * @param joined
+     */
+    private void queuePresence(String clientName, boolean joined) {
+	Set<String> opposite = joined ? pendingLeaves : pendingJoins;
+	if (!opposite.remove(clientName)) {
+	    (joined ? pendingJoins : pendingLeaves).add(clientName);
+	}
+	if (!presenceScheduled && (!pendingJoins.isEmpty() || !pendingLeaves.isEmpty())) {
+	    presenceScheduled = true;
+	    server.schedule(this::flushPresence, PRESENCE_MILLIS);
+	}
+    }
+
+    /***
+     * Sends the batched presence changes as one LEFT and one JOINED frame, more
+     * only if there are too many names for one (see chunk). Runs under the room
+     * lock so a client joining at the same time gets a roster that lines up
+     * with what it receives next.
+     */
+    private synchronized void flushPresence() {
+	presenceScheduled = false;
+	if (name == null) {
+	    return;
+	}
+	if (!pendingLeaves.isEmpty()) {
+	    List<String> left = new ArrayList<String>(pendingLeaves);
+	    pendingLeaves.clear();
+	    for (List<String> chunk : chunk(left)) {
+		broadcast(new Broadcast(ServerThread.buildNames(PayloadType.LEFT, chunk, "left the room " + name)));
+	    }
+	}
+	if (!pendingJoins.isEmpty()) {
+	    List<String> joined = new ArrayList<String>(pendingJoins);
+	    pendingJoins.clear();
+	    for (List<String> chunk : chunk(joined)) {
+		broadcast(new Broadcast(ServerThread.buildNames(PayloadType.JOINED, chunk, "joined the room " + name)));
+	    }
+	}
+    }
+
     private void cleanupEmptyRoom() {
 	// If name is null it's already been closed. And don't close the Lobby
 	if (name == null || name.equalsIgnoreCase(SocketServer.LOBBY)) {
@@ -89,58 +364,134 @@ public class Room implements AutoCloseable {
 	server.joinLobby(client);
     }
 
+    /***
+     * Adds a command that can be used from any room, e.g. registerCommand("me",
+     * ...) makes "/me waves" run it. Replaces any command with the same name.
+     * 
+     * @param name    case insensitive, ASCII letters and digits only
+     * @param command
+     */
+    public static void registerCommand(String name, Command command) {
+	commands.register(name, command);
+    }
+
+    private static String firstWord(String args) {
+	if (args.isEmpty()) {
+	    return null;
+	}
+	int space = args.indexOf(' ');
+	return space < 0 ? args : args.substring(0, space);
+    }
+
     /***
      * Helper function to process messages to trigger different functionality.
+     * Only messages starting with the command trigger are considered.
      * 
      * @param message The original message being sent
      * @param client  The sender of the message (since they'll be the ones
      *                triggering the actions)
      */
-    private boolean processCommands(String message, ServerThread client) {
-	boolean wasCommand = false;
-	try {
-	    if (message.indexOf(COMMAND_TRIGGER) > -1) {
-		String[] comm = message.split(COMMAND_TRIGGER);
-		log.log(Level.INFO, message);
-		String part1 = comm[1];
-		String[] comm2 = part1.split(" ");
-		String command = comm2[0];
-		if (command != null) {
-		    command = command.toLowerCase();
-		}
-		String roomName;
-		switch (command) {
-		case CREATE_ROOM:
-		    roomName = comm2[1];
-		    if (server.createNewRoom(roomName)) {
-			joinRoom(roomName, client);
-		    }
-		    wasCommand = true;
-		    break;
-		case JOIN_ROOM:
-		    roomName = comm2[1];
-		    joinRoom(roomName, client);
-		    wasCommand = true;
-		    break;
+    boolean processCommands(String message, ServerThread client) {
+	boolean wasCommand = commands.dispatch(message, this, client);
+	if (wasCommand && trace.isLoggable(Level.FINEST)) {
+	    trace.log(Level.FINEST, "Command: {0}", message);
+	}
+	return wasCommand;
+    }
+
+    /***
+     * Sends to every member without taking the room lock. Clients that fail are
+     * collected and removed in one batch afterwards.
+     * 
+     * @param broadcast
+     */
+    private void broadcast(Broadcast broadcast) {
+	List<ServerThread> failed = sendToAll(broadcast);
+	if (failed != null) {
+	    removeFailedClients(failed);
+	}
+    }
+
+    /***
+     * @param broadcast
+     * @return the clients that couldn't be sent to or null if there were none
+     */
+    private List<ServerThread> sendToAll(Broadcast broadcast) {
+	List<ServerThread> failed = null;
+	long start = System.nanoTime();
+	int members = 0;
+	for (ServerThread c : clients) {
+	    members++;
+	    if (!c.sendBroadcast(broadcast)) {
+		if (failed == null) {
+		    failed = new ArrayList<ServerThread>();
 		}
+		failed.add(c);
 	    }
 	}
-	catch (Exception e) {
-	    e.printStackTrace();
+	ServerMetrics.broadcastNanos.record(System.nanoTime() - start);
+	ServerMetrics.fanOut.record(members);
+	return failed;
+    }
+
+    /***
+     * Caller must hold sequenceLock
+     * 
+     * @return this room's log or null if there's no history
+     */
+    private MessageLog history() {
+	if (!isHistoryOpen && name != null) {
+	    isHistoryOpen = true;
+	    history = server == null ? null : server.openHistory(name);
+	    // numbers only go up, across closes and restarts, or resuming clients
+	    // and other nodes would take new messages for ones they've seen. The
+	    // log says where the room left off and retiredSequence covers earlier
+	    // rooms in this process. Past that the clock stands in, assuming it
+	    // doesn't step back and no earlier run averaged over 1000 messages a
+	    // millisecond in one room.
+	    long seed = Math.max(System.currentTimeMillis() * 1000, retiredSequence.get());
+	    lastSequence = history == null ? seed : Math.max(seed, history.getLastSequence());
 	}
-	return wasCommand;
+	return history;
     }
 
-    // TODO changed from string to ServerThread
-    protected void sendConnectionStatus(ServerThread client, boolean isConnect, String message) {
-	Iterator<ServerThread> iter = clients.iterator();
-	while (iter.hasNext()) {
-	    ServerThread c = iter.next();
-	    boolean messageSent = c.sendConnectionStatus(client.getClientName(), isConnect, message);
-	    if (!messageSent) {
-		iter.remove();
-		log.log(Level.INFO, "Removed client " + c.getId());
+    /***
+     * /history [count] or /history since &lt;sequence&gt;
+     * 
+     * @param client
+     * @param args
+     */
+    private void sendHistory(ServerThread client, String args) {
+	MessageLog messageLog;
+	synchronized (sequenceLock) {
+	    messageLog = history();
+	}
+	if (messageLog == null) {
+	    client.send(SERVER_NAME, "History isn't available here");
+	    return;
+	}
+	String[] parts = args.isEmpty() ? new String[0] : args.split("\\s+");
+	try {
+	    List<byte[]> frames;
+	    if (parts.length == 2 && parts[0].equalsIgnoreCase("since")) {
+		frames = messageLog.readSince(Long.parseLong(parts[1]), HISTORY_MAX);
+	    }
+	    else if (parts.length <= 1) {
+		int count = parts.length == 0 ? HISTORY_DEFAULT : Integer.parseInt(parts[0]);
+		frames = messageLog.readLast(Math.max(0, Math.min(count, HISTORY_MAX)));
 	    }
+	    else {
+		client.send(SERVER_NAME, "Usage: /" + HISTORY + " [count] or /" + HISTORY + " since <sequence>");
+		return;
+	    }
+	    client.sendFrames(frames);
+	}
+	catch (NumberFormatException e) {
+	    client.send(SERVER_NAME, "Usage: /" + HISTORY + " [count] or /" + HISTORY + " since <sequence>");
+	}
+	catch (IOException e) {
+	    log.log(Level.WARNING, "Failed to read history of " + name, e);
+	    client.send(SERVER_NAME, "Couldn't read the history");
 	}
     }
 
@@ -153,19 +504,62 @@ public class Room implements AutoCloseable {
      * @param message The message to broadcast inside the room
      */
     protected void sendMessage(ServerThread sender, String message) {
-	log.log(Level.INFO, getName() + ": Sending message to " + clients.size() + " clients");
+	if (trace.isLoggable(Level.FINEST)) {
+	    trace.log(Level.FINEST, "{0}: Sending message to {1} clients", new Object[] { name, clients.size() });
+	}
 	if (processCommands(message, sender)) {
 	    // it was a command, don't broadcast
 	    return;
 	}
-	Iterator<ServerThread> iter = clients.iterator();
-	while (iter.hasNext()) {
-	    ServerThread client = iter.next();
-	    boolean messageSent = client.send(sender.getClientName(), message);
-	    if (!messageSent) {
-		iter.remove();
-		log.log(Level.INFO, "Removed client " + client.getId());
+	Payload payload = ServerThread.buildMessage(sender.getClientName(), message);
+	// encoded once, every member gets the same frame
+	Broadcast b = new Broadcast(payload);
+	List<ServerThread> failed;
+	synchronized (sequenceLock) {
+	    MessageLog messageLog = history();
+	    payload.setSequence(++lastSequence);
+	    try {
+		byte[] frame = b.frameFor(Frames.BINARY);
+		recent.add(b, frame.length);
+		if (server != null) {
+		    // queued, in sequence order, for members on other nodes
+		    server.publish(name, lastSequence, frame);
+		}
+		if (messageLog != null) {
+		    // only a copy into the mapped segment, forcing happens elsewhere
+		    messageLog.append(lastSequence, frame);
+		}
+	    }
+	    catch (IOException e) {
+		log.log(Level.WARNING, "Failed to append to the history of " + name, e);
+	    }
+	    failed = sendToAll(b);
+	}
+	// outside the sequence lock, removal takes the room lock
+	if (failed != null) {
+	    removeFailedClients(failed);
+	}
+    }
+
+    /***
+     * Sends a message from this room's members on another node to the members
+     * here. It's not numbered or logged again, that's the origin's job, and it
+     * must arrive with sequence 0 so it stays out of resumes here.
+     * 
+     * @param broadcast
+     * @param size      encoded size
+     */
+    void deliverRemote(Broadcast broadcast, int size) {
+	List<ServerThread> failed;
+	synchronized (sequenceLock) {
+	    if (name == null) {
+		return;
 	    }
+	    recent.add(broadcast, size);
+	    failed = sendToAll(broadcast);
+	}
+	if (failed != null) {
+	    removeFailedClients(failed);
 	}
     }
 
@@ -174,18 +568,30 @@ public class Room implements AutoCloseable {
      * set references to null and should be eligible for garbage collection
      */
     @Override
-    public void close() throws Exception {
+    public synchronized void close() throws Exception {
 	int clientCount = clients.size();
 	if (clientCount > 0) {
-	    log.log(Level.INFO, "Migrating " + clients.size() + " to Lobby");
-	    Iterator<ServerThread> iter = clients.iterator();
+	    log.log(Level.INFO, "Migrating " + clientCount + " to Lobby");
 	    Room lobby = server.getLobby();
-	    while (iter.hasNext()) {
-		ServerThread client = iter.next();
+	    for (ServerThread client : clients) {
 		lobby.addClient(client);
-		iter.remove();
 	    }
-	    log.log(Level.INFO, "Done Migrating " + clients.size() + " to Lobby");
+	    clients.clear();
+	    log.log(Level.INFO, "Done Migrating " + clientCount + " to Lobby");
+	}
+	synchronized (sequenceLock) {
+	    if (history != null) {
+		try {
+		    history.close();
+		}
+		catch (IOException e) {
+		    log.log(Level.WARNING, "Failed to close the history of " + name, e);
+		}
+	    }
+	    history = null;
+	    isHistoryOpen = true;
+	    recent.clear();
+	    retiredSequence.accumulateAndGet(lastSequence, Math::max);
 	}
 	server.cleanupRoom(this);
 	name = null;
@@ -0,0 +1,79 @@
+package server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputFilter;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Set;
+
+/***
+ * Fallback codec using plain Java serialization. Every frame gets its own
+ * object stream so there's no shared handle table growing across messages,
+ * at the cost of repeating the class descriptor each time.
+ * 
+ * Frames come straight off the network, so decoding only accepts the classes a
+ * Payload is made of, and no more depth, references or array elements than the
+ * body could honestly hold. Anything else fails with an IOException before
+ * it's instantiated.
+ */
+public class SerializedPayloadCodec implements PayloadCodec {
+    // every serialization stream starts with the magic 0xACED
+    final static byte MAGIC = (byte) 0xAC;
+    // ArrayList reads its elements into an Object[], enums are read as Enum
+    private final static Set<Class<?>> CLASSES = Set.of(Payload.class, PayloadType.class, Enum.class,
+	    ArrayList.class, String.class, Object[].class);
+    // Payload, its list, the list's elements
+    private final static int MAX_DEPTH = 4;
+
+    @Override
+    public byte[] encode(Payload p) throws IOException {
+	ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+	// reserve room for the length, it's patched in below
+	bytes.write(new byte[Frames.HEADER_SIZE]);
+	try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+	    out.writeObject(p);
+	}
+	byte[] frame = bytes.toByteArray();
+	Frames.writeLength(frame, frame.length - Frames.HEADER_SIZE);
+	return frame;
+    }
+
+    @Override
+    public Payload decode(byte[] body, int offset, int length) throws IOException {
+	Payload p;
+	try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(body, offset, length))) {
+	    in.setObjectInputFilter(filter(length));
+	    p = (Payload) in.readObject();
+	}
+	catch (ClassNotFoundException | ClassCastException e) {
+	    throw new IOException("Unknown payload class", e);
+	}
+	if (p == null || p.getPayloadType() == null) {
+	    // same as a bad ordinal in the binary codec, nothing downstream can handle it
+	    throw new IOException("Payload has no type");
+	}
+	return p;
+    }
+
+    /***
+     * @param length body length; every reference and array element takes at
+     *               least a byte of it
+     * @return
+     */
+    private static ObjectInputFilter filter(int length) {
+	return info -> {
+	    Class<?> c = info.serialClass();
+	    if (c != null && !CLASSES.contains(c)) {
+		return ObjectInputFilter.Status.REJECTED;
+	    }
+	    if (info.depth() > MAX_DEPTH || info.arrayLength() > length || info.references() > length
+		    || info.streamBytes() > length) {
+		return ObjectInputFilter.Status.REJECTED;
+	    }
+	    return c != null ? ObjectInputFilter.Status.ALLOWED : ObjectInputFilter.Status.UNDECIDED;
+	};
+    }
+}
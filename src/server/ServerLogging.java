@@ -0,0 +1,101 @@
+package server;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.ConsoleHandler;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+/***
+ * Moves server logging off the threads doing the work. Records from every
+ * server.* logger are handed to a background thread that does the actual
+ * console I/O, so a slow console can't stall a room broadcast.
+ * 
+ * Per-message tracing goes to the TRACE logger and is off by default. Start
+ * with -Dserver.trace=true, or flip it while running through the standard
+ * logging MXBean (java.util.logging:type=Logging, setLoggerLevel("server.trace",
+ * "FINEST")) from jconsole or similar.
+ */
+public class ServerLogging {
+    public final static Logger TRACE = Logger.getLogger("server.trace");
+    private final static Logger root = Logger.getLogger("server");
+    private static boolean installed = false;
+
+    private ServerLogging() {
+    }
+
+    public static synchronized void install() {
+	if (installed) {
+	    return;
+	}
+	installed = true;
+	Handler console = new ConsoleHandler();
+	// loggers decide what's enabled, the handler just prints
+	console.setLevel(Level.ALL);
+	root.addHandler(new AsyncHandler(console, Integer.getInteger("server.logQueue", 8192)));
+	root.setUseParentHandlers(false);
+	TRACE.setLevel(Boolean.getBoolean("server.trace") ? Level.FINEST : Level.OFF);
+    }
+
+    /***
+     * Queues records for a single writer thread. If the queue fills up records
+     * are dropped (and counted) rather than blocking the caller.
+     */
+    private static class AsyncHandler extends Handler {
+	private final Handler delegate;
+	private final BlockingQueue<LogRecord> queue;
+	private final AtomicLong dropped = new AtomicLong();
+
+	AsyncHandler(Handler delegate, int capacity) {
+	    this.delegate = delegate;
+	    this.queue = new ArrayBlockingQueue<LogRecord>(capacity);
+	    Thread writer = new Thread(this::drain, "async-log");
+	    writer.setDaemon(true);
+	    writer.start();
+	}
+
+	@Override
+	public void publish(LogRecord record) {
+	    if (!isLoggable(record)) {
+		return;
+	    }
+	    // resolve the caller now, it can't be worked out on another thread
+	    record.getSourceClassName();
+	    if (!queue.offer(record)) {
+		dropped.incrementAndGet();
+	    }
+	}
+
+	private void drain() {
+	    try {
+		while (true) {
+		    LogRecord record = queue.take();
+		    long lost = dropped.getAndSet(0);
+		    if (lost > 0) {
+			delegate.publish(new LogRecord(Level.WARNING, "Log queue full, dropped " + lost + " records"));
+		    }
+		    delegate.publish(record);
+		    if (queue.isEmpty()) {
+			delegate.flush();
+		    }
+		}
+	    }
+	    catch (InterruptedException e) {
+		Thread.currentThread().interrupt();
+	    }
+	}
+
+	@Override
+	public void flush() {
+	    delegate.flush();
+	}
+
+	@Override
+	public void close() {
+	    delegate.close();
+	}
+    }
+}
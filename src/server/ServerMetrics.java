@@ -0,0 +1,209 @@
+package server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.sun.net.httpserver.HttpServer;
+
+/***
+ * Server wide counters and histograms. Everything is a LongAdder, so updates
+ * from many threads don't contend and never lock; the cost moves to the reader,
+ * which only runs when someone scrapes.
+ * 
+ * With -Dserver.metricsPort=N they're served in the Prometheus text format at
+ * http://127.0.0.1:N/metrics (loopback only).
+ */
+final class ServerMetrics {
+    private final static Logger log = Logger.getLogger(ServerMetrics.class.getName());
+    private final static PayloadType[] TYPES = PayloadType.values();
+
+    final static LongAdder connectionsAccepted = new LongAdder();
+    final static LongAdder connectionsClosed = new LongAdder();
+    final static LongAdder sessionsResumed = new LongAdder();
+    // dropped by the heartbeat for sending nothing, see SocketServer.checkIdle
+    final static LongAdder connectionsReaped = new LongAdder();
+    private final static LongAdder[] payloadsIn = adders(TYPES.length);
+    private final static LongAdder[] payloadsOut = adders(TYPES.length);
+    final static LongAdder bytesIn = new LongAdder();
+    final static LongAdder bytesOut = new LongAdder();
+    // sends a channel refused, e.g. closed or over its queue policy
+    final static LongAdder sendFailures = new LongAdder();
+    // frames thrown away by DROP_OLDEST queues
+    final static LongAdder framesDropped = new LongAdder();
+    final static Histogram fanOut = new Histogram(1, 10, 100, 1_000, 10_000, 100_000);
+    // nanoseconds to hand one message to every member of a room
+    final static Histogram broadcastNanos = new Histogram(1_000, 10_000, 100_000, 1_000_000, 10_000_000,
+	    100_000_000);
+    // nanoseconds per socket write
+    final static Histogram writeNanos = new Histogram(1_000, 10_000, 100_000, 1_000_000, 10_000_000, 100_000_000);
+
+    private ServerMetrics() {
+    }
+
+    private static LongAdder[] adders(int count) {
+	LongAdder[] a = new LongAdder[count];
+	for (int i = 0; i < count; i++) {
+	    a[i] = new LongAdder();
+	}
+	return a;
+    }
+
+    /***
+     * Fixed bucket histogram, cumulative like Prometheus expects
+     */
+    static final class Histogram {
+	private final long[] bounds;
+	private final LongAdder[] counts;
+	private final LongAdder sum = new LongAdder();
+
+	Histogram(long... bounds) {
+	    this.bounds = bounds;
+	    counts = adders(bounds.length + 1);
+	}
+
+	void record(long value) {
+	    int i = 0;
+	    while (i < bounds.length && value > bounds[i]) {
+		i++;
+	    }
+	    counts[i].increment();
+	    sum.add(value);
+	}
+
+	/***
+	 * @param scale decimal places to shift bounds and the sum by, e.g. 9 to
+	 *              report nanoseconds as seconds
+	 */
+	void write(StringBuilder out, String name, String help, int scale) {
+	    out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+	    out.append("# TYPE ").append(name).append(" histogram\n");
+	    long cumulative = 0;
+	    for (int i = 0; i < bounds.length; i++) {
+		cumulative += counts[i].sum();
+		out.append(name).append("_bucket{le=\"").append(decimal(bounds[i], scale)).append("\"} ").append(cumulative)
+			.append('\n');
+	    }
+	    cumulative += counts[bounds.length].sum();
+	    out.append(name).append("_bucket{le=\"+Inf\"} ").append(cumulative).append('\n');
+	    out.append(name).append("_sum ").append(decimal(sum.sum(), scale)).append('\n');
+	    out.append(name).append("_count ").append(cumulative).append('\n');
+	}
+    }
+
+    private static String decimal(long value, int scale) {
+	return BigDecimal.valueOf(value, scale).stripTrailingZeros().toPlainString();
+    }
+
+    static void payloadIn(PayloadType type, int bytes) {
+	payloadsIn[type.ordinal()].increment();
+	bytesIn.add(bytes);
+    }
+
+    static void payloadOut(PayloadType type) {
+	payloadsOut[type.ordinal()].increment();
+    }
+
+    private static void counter(StringBuilder out, String name, String help, long value) {
+	out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+	out.append("# TYPE ").append(name).append(" counter\n");
+	out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void gauge(StringBuilder out, String name, String help, long value) {
+	out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+	out.append("# TYPE ").append(name).append(" gauge\n");
+	out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void byType(StringBuilder out, String name, String help, LongAdder[] counts) {
+	out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+	out.append("# TYPE ").append(name).append(" counter\n");
+	for (PayloadType t : TYPES) {
+	    out.append(name).append("{type=\"").append(t).append("\"} ").append(counts[t.ordinal()].sum())
+		    .append('\n');
+	}
+    }
+
+    static String escapeLabel(String value) {
+	return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    /***
+     * @param rooms the server's current rooms, for the per room gauges
+     * @return everything in the Prometheus text format
+     */
+    static String scrape(Iterable<Room> rooms) {
+	StringBuilder out = new StringBuilder(4096);
+	long accepted = connectionsAccepted.sum();
+	counter(out, "server_connections_accepted_total", "Connections accepted", accepted);
+	gauge(out, "server_connections_active", "Connections not yet closed", accepted - connectionsClosed.sum());
+	counter(out, "server_connections_reaped_total", "Connections dropped for going quiet",
+		connectionsReaped.sum());
+	counter(out, "server_sessions_resumed_total", "Dropped clients that resumed their session",
+		sessionsResumed.sum());
+	byType(out, "server_payloads_in_total", "Payloads received from clients", payloadsIn);
+	byType(out, "server_payloads_out_total", "Payloads queued to clients", payloadsOut);
+	counter(out, "server_bytes_in_total", "Frame bytes received, length prefix included", bytesIn.sum());
+	counter(out, "server_bytes_out_total", "Bytes written to client sockets", bytesOut.sum());
+	counter(out, "server_send_failures_total", "Sends refused by a closed or full channel", sendFailures.sum());
+	counter(out, "server_frames_dropped_total", "Frames dropped by DROP_OLDEST queues", framesDropped.sum());
+	counter(out, "server_socket_writes_total", "Write calls to client sockets", OutboundQueue.getTotalWrites());
+	// divided by the writes above, above 1 means writes are being coalesced
+	counter(out, "server_frames_written_total", "Frames carried by those writes",
+		OutboundQueue.getTotalFramesWritten());
+	fanOut.write(out, "server_broadcast_fanout", "Members each room message was sent to", 0);
+	broadcastNanos.write(out, "server_broadcast_seconds", "Time to queue a room message for every member",
+		9);
+	writeNanos.write(out, "server_socket_write_seconds", "Time per write to a client socket", 9);
+	gauge(out, "server_replay_bytes", "Bytes held by join replay buffers", RecentFrames.getTotalBytes());
+	out.append("# HELP server_room_members Members per room\n");
+	out.append("# TYPE server_room_members gauge\n");
+	int count = 0;
+	for (Room r : rooms) {
+	    String name = r.getName();
+	    if (name != null) {
+		out.append("server_room_members{room=\"").append(escapeLabel(name)).append("\"} ")
+			.append(r.getMemberCount()).append('\n');
+		count++;
+	    }
+	}
+	gauge(out, "server_rooms", "Open rooms", count);
+	return out.toString();
+    }
+
+    /***
+     * Serves /metrics on the loopback interface
+     * 
+     * @param port
+     * @param metrics produces the page for each scrape
+     * @return the running server, stop it when done
+     * @throws IOException
+     */
+    static HttpServer serve(int port, Supplier<String> metrics) throws IOException {
+	HttpServer http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+	http.createContext("/metrics", exchange -> {
+	    try {
+		byte[] body = metrics.get().getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+		exchange.sendResponseHeaders(200, body.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+		    out.write(body);
+		}
+	    }
+	    finally {
+		exchange.close();
+	    }
+	});
+	http.start();
+	log.log(Level.INFO, "Metrics on http://" + http.getAddress().getHostString() + ":" + port + "/metrics");
+	return http;
+    }
+}
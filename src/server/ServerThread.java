@@ -1,25 +1,45 @@
 package server;
 
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-public class ServerThread extends Thread {
-    private Socket client;
-    private ObjectInputStream in;// from client
-    private ObjectOutputStream out;// to client
-    private boolean isRunning = false;
-    private Room currentRoom;// what room we are in, should be lobby by default
+/***
+ * The server's representation of a client. It holds the client's name and room
+ * and speaks the Payload protocol; the bytes themselves go through a
+ * ClientChannel so the same class serves both the blocking and NIO transports.
+ */
+public class ServerThread {
+    private final static AtomicLong nextId = new AtomicLong();
+    private final long id = nextId.incrementAndGet();
+    private ClientChannel channel;
+    // answer in whatever codec the client speaks, picked up from its first frame
+    private volatile PayloadCodec codec = Frames.defaultCodec();
+    private final AtomicBoolean isCleanedUp = new AtomicBoolean();
+    private final SocketServer server;
+    private Room currentRoom;// what room we are in, null until the client sends CONNECT
+    private String currentRoomName;// kept for resuming, the room forgets it if it closes
+    private volatile TimerWheel.Timeout handshakeTimeout;
+    private volatile TimerWheel.Timeout heartbeat;
+    // when the client last sent anything, see SocketServer.checkIdle
+    private volatile long lastReadNanos = System.nanoTime();
+    private volatile String resumeToken;// null until named, see SessionRegistry
     private String clientName;
     private final static Logger log = Logger.getLogger(ServerThread.class.getName());
+    private final static Logger trace = ServerLogging.TRACE;
 
     public String getClientName() {
 	return clientName;
     }
 
+    public long getId() {
+	return id;
+    }
+
     protected synchronized Room getCurrentRoom() {
 	return currentRoom;
     }
@@ -27,38 +47,56 @@ public class ServerThread extends Thread {
     protected synchronized void setCurrentRoom(Room room) {
 	if (room != null) {
 	    currentRoom = room;
+	    currentRoomName = room.getName();
 	}
 	else {
 	    log.log(Level.INFO, "Passed in room was null, this shouldn't happen");
 	}
     }
 
-    public ServerThread(Socket myClient, Room room) throws IOException {
-	this.client = myClient;
-	this.currentRoom = room;
-	out = new ObjectOutputStream(client.getOutputStream());
-	in = new ObjectInputStream(client.getInputStream());
+    public ServerThread(SocketServer server) {
+	this.server = server;
+    }
+
+    void setHandshakeTimeout(TimerWheel.Timeout timeout) {
+	handshakeTimeout = timeout;
+    }
+
+    void setHeartbeat(TimerWheel.Timeout timeout) {
+	heartbeat = timeout;
+    }
+
+    /***
+     * @return how long since the client last sent anything
+     */
+    long getIdleMillis() {
+	return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastReadNanos);
+    }
+
+    boolean isCleanedUp() {
+	return isCleanedUp.get();
+    }
+
+    void setChannel(ClientChannel channel) {
+	this.channel = channel;
     }
 
     /***
-     * Sends the message to the client represented by this ServerThread
+     * Frames waiting in this client's outbound queue; a client that stays near
+     * capacity is a slow consumer
      * 
-     * @param message
      * @return
      */
-    @Deprecated
-    protected boolean send(String message) {
-	// added a boolean so we can see if the send was successful
-	try {
-	    out.writeObject(message);
-	    return true;
-	}
-	catch (IOException e) {
-	    log.log(Level.INFO, "Error sending message to client (most likely disconnected)");
-	    e.printStackTrace();
-	    cleanup();
-	    return false;
-	}
+    public int getQueueDepth() {
+	return channel == null ? 0 : channel.getOutbound().getDepth();
+    }
+
+    public int getQueueHighWater() {
+	return channel == null ? 0 : channel.getOutbound().getHighWater();
+    }
+
+    public long getDroppedFrames() {
+	return channel == null ? 0 : channel.getOutbound().getDropped();
     }
 
     /***
@@ -70,25 +108,82 @@ public class ServerThread extends Thread {
      * @return
      */
     protected boolean send(String clientName, String message) {
-	Payload payload = new Payload();
-	payload.setPayloadType(PayloadType.MESSAGE);
-	payload.setClientName(clientName);
-	payload.setMessage(message);
+	return sendPayload(buildMessage(clientName, message));
+    }
 
+    protected boolean sendConnectionStatus(String clientName, boolean isConnect, String message) {
+	return sendPayload(buildConnectionStatus(clientName, isConnect, message));
+    }
+
+    /***
+     * Sends a list of member names, a ROSTER to replace the client's list or a
+     * JOINED/LEFT batch
+     * 
+     * @param type
+     * @param names
+     * @param message
+     * @return
+     */
+    protected boolean sendNames(PayloadType type, List<String> names, String message) {
+	return sendPayload(buildNames(type, names, message));
+    }
+
+    /***
+     * Sends the first ROSTER frame of a room the client just joined
+     * 
+     * @param names
+     * @param sequence the last message the client has, or is about to be sent
+     *                 the ones after
+     * @return
+     */
+    protected boolean sendRoster(List<String> names, long sequence) {
+	Payload payload = buildNames(PayloadType.ROSTER, names, null);
+	payload.setSequence(sequence);
 	return sendPayload(payload);
     }
 
-    protected boolean sendConnectionStatus(String clientName, boolean isConnect, String message) {
+    /***
+     * Tells the client to reconnect to another node and repeat a command there
+     * 
+     * @param address host:port
+     * @param command
+     * @return
+     */
+    protected boolean sendRedirect(String address, String command) {
 	Payload payload = new Payload();
-	if (isConnect) {
-	    payload.setPayloadType(PayloadType.CONNECT);
-	    payload.setMessage(message);
-	}
-	else {
-	    payload.setPayloadType(PayloadType.DISCONNECT);
-	    payload.setMessage(message);
+	payload.setPayloadType(PayloadType.REDIRECT);
+	payload.setMessage(address + " " + command);
+	return sendPayload(payload);
+    }
+
+    /***
+     * Gives the client a new resume token
+     * 
+     * @return
+     */
+    private boolean sendResumeToken() {
+	String token = server.getSessions().open(this);
+	resumeToken = token;
+	if (isCleanedUp.get()) {
+	    // closed (e.g. by a failed write) before the token existed, so
+	    // cleanup couldn't hand the session over
+	    server.getSessions().discard(token);
+	    return false;
 	}
-	payload.setClientName(clientName);
+	Payload payload = new Payload();
+	payload.setPayloadType(PayloadType.RESUME);
+	payload.setMessage(token);
+	return sendPayload(payload);
+    }
+
+    /***
+     * Asks a quiet client to show it's still there
+     * 
+     * @return
+     */
+    protected boolean sendPing() {
+	Payload payload = new Payload();
+	payload.setPayloadType(PayloadType.PING);
 	return sendPayload(payload);
     }
 
@@ -98,17 +193,173 @@ public class ServerThread extends Thread {
 	return sendPayload(payload);
     }
 
-    private boolean sendPayload(Payload p) {
+    /***
+     * Sends a payload that's shared with other clients, reusing its encoded
+     * frame
+     * 
+     * @param broadcast
+     * @return
+     */
+    protected boolean sendBroadcast(Broadcast broadcast) {
+	if (channel == null || channel.isClosed()) {
+	    return false;
+	}
 	try {
-	    out.writeObject(p);
+	    return sendFrame(broadcast.getPayload().getPayloadType(), broadcast.frameFor(codec));
+	}
+	catch (IOException e) {
+	    log.log(Level.WARNING, "Failed to encode " + broadcast.getPayload(), e);
+	    return false;
+	}
+    }
+
+    /***
+     * Hands a frame to the channel and counts the outcome
+     */
+    private boolean sendFrame(PayloadType type, byte[] frame) {
+	if (channel.send(frame)) {
+	    ServerMetrics.payloadOut(type);
+	    return true;
+	}
+	ServerMetrics.sendFailures.increment();
+	return false;
+    }
+
+    /***
+     * Sends several shared payloads as one queued entry, so they go out in a
+     * single write
+     * 
+     * @param broadcasts
+     * @return
+     */
+    protected boolean sendBroadcasts(List<Broadcast> broadcasts) {
+	if (broadcasts.isEmpty()) {
+	    return true;
+	}
+	if (channel == null || channel.isClosed()) {
+	    return false;
+	}
+	PayloadCodec c = codec;
+	try {
+	    byte[][] frames = new byte[broadcasts.size()][];
+	    int size = 0;
+	    for (int i = 0; i < frames.length; i++) {
+		frames[i] = broadcasts.get(i).frameFor(c);
+		size += frames[i].length;
+	    }
+	    byte[] batch = new byte[size];
+	    int offset = 0;
+	    for (byte[] f : frames) {
+		System.arraycopy(f, 0, batch, offset, f.length);
+		offset += f.length;
+	    }
+	    if (!channel.send(batch)) {
+		ServerMetrics.sendFailures.increment();
+		return false;
+	    }
+	    for (Broadcast b : broadcasts) {
+		ServerMetrics.payloadOut(b.getPayload().getPayloadType());
+	    }
 	    return true;
 	}
 	catch (IOException e) {
-	    log.log(Level.INFO, "Error sending message to client (most likely disconnected)");
-	    e.printStackTrace();
-	    cleanup();
+	    log.log(Level.WARNING, "Failed to encode a batch of " + broadcasts.size(), e);
+	    return false;
+	}
+    }
+
+    /***
+     * Sends stored binary frames (e.g. room history) in order. Clients using the
+     * serialized codec get them re-encoded.
+     * 
+     * @param binaryFrames
+     * @return false if the client can't be reached
+     */
+    protected boolean sendFrames(List<byte[]> binaryFrames) {
+	if (channel == null || channel.isClosed()) {
+	    return false;
+	}
+	PayloadCodec c = codec;
+	for (byte[] frame : binaryFrames) {
+	    try {
+		byte[] out = c == Frames.BINARY ? frame
+			: c.encode(Frames.BINARY.decode(frame, Frames.HEADER_SIZE, frame.length - Frames.HEADER_SIZE));
+		if (!sendFrame(PayloadType.MESSAGE, out)) {
+		    return false;
+		}
+	    }
+	    catch (IOException e) {
+		log.log(Level.WARNING, "Failed to re-encode a stored frame", e);
+	    }
+	}
+	return true;
+    }
+
+    private boolean sendPayload(Payload p) {
+	if (channel == null || channel.isClosed()) {
 	    return false;
 	}
+	try {
+	    return sendFrame(p.getPayloadType(), codec.encode(p));
+	}
+	catch (IOException e) {
+	    log.log(Level.WARNING, "Failed to encode " + p, e);
+	    return false;
+	}
+    }
+
+    static Payload buildMessage(String clientName, String message) {
+	Payload payload = new Payload();
+	payload.setPayloadType(PayloadType.MESSAGE);
+	payload.setClientName(clientName);
+	payload.setMessage(message);
+	return payload;
+    }
+
+    static Payload buildNames(PayloadType type, List<String> names, String message) {
+	Payload payload = new Payload();
+	payload.setPayloadType(type);
+	payload.setClientNames(names);
+	payload.setMessage(message);
+	return payload;
+    }
+
+    static Payload buildConnectionStatus(String clientName, boolean isConnect, String message) {
+	Payload payload = new Payload();
+	if (isConnect) {
+	    payload.setPayloadType(PayloadType.CONNECT);
+	}
+	else {
+	    payload.setPayloadType(PayloadType.DISCONNECT);
+	}
+	payload.setMessage(message);
+	payload.setClientName(clientName);
+	return payload;
+    }
+
+    /***
+     * Decodes a frame body from our client and processes it. Called by the
+     * transport on its reading thread.
+     * 
+     * @param body
+     * @param offset
+     * @param length
+     * @throws IOException if the frame can't be decoded or carries a name
+     *                     longer than Frames.MAX_TEXT
+     */
+    void processFrame(byte[] body, int offset, int length) throws IOException {
+	lastReadNanos = System.nanoTime();
+	PayloadCodec c = Frames.codecFor(body, offset);
+	if (c != codec) {
+	    codec = c;
+	}
+	Payload p = c.decode(body, offset, length);
+	if (p.getClientName() != null && p.getClientName().length() > Frames.MAX_TEXT) {
+	    // it'd go out with everything this client says
+	    throw new IOException("Client name too long");
+	}
+	ServerMetrics.payloadIn(p.getPayloadType(), Frames.HEADER_SIZE + length);
+	processPayload(p);
     }
 
     /***
@@ -117,6 +368,9 @@ public class ServerThread extends Thread {
      * @param p
      */
     private void processPayload(Payload p) {
+	if (trace.isLoggable(Level.FINEST)) {
+	    trace.log(Level.FINEST, "Received from client {0}: {1}", new Object[] { id, p });
+	}
 	switch (p.getPayloadType()) {
 	case CONNECT:
 	    // here we'll fetch a clientName from our client
@@ -124,20 +378,60 @@ public class ServerThread extends Thread {
 	    if (n != null) {
 		clientName = n;
 		log.log(Level.INFO, "Set our name to " + clientName);
-		if (currentRoom != null) {
-		    currentRoom.joinLobby(this);
+		if (getCurrentRoom() == null) {
+		    // handshake done, we're a real client now
+		    cancelHandshakeTimeout();
+		    server.joinLobby(this);
+		    sendResumeToken();
 		}
 	    }
 	    break;
+	case RESUME:
+	    if (getCurrentRoom() == null) {
+		resume(p.getMessage(), p.getClientName(), p.getSequence());
+	    }
+	    else {
+		log.log(Level.INFO, "Ignoring RESUME from client " + id + " that's already in a room");
+	    }
+	    break;
 	case DISCONNECT:
-	    isRunning = false;// this will break the while loop in run() and clean everything up
+	    // leaving on purpose, nothing to resume
+	    String token = resumeToken;
+	    resumeToken = null;
+	    if (token != null) {
+		server.getSessions().discard(token);
+	    }
+	    cleanup();
 	    break;
 	case MESSAGE:
-	    currentRoom.sendMessage(this, p.getMessage());
+	    Room room = getCurrentRoom();
+	    String text = p.getMessage();
+	    if (text != null && text.length() > Frames.MAX_TEXT) {
+		// re-encoded with our name and a sequence it could outgrow
+		// MAX_FRAME, and every member would drop the connection
+		send(Room.SERVER_NAME, "Message too long, the limit is " + Frames.MAX_TEXT + " characters");
+	    }
+	    else if (room != null) {
+		room.sendMessage(this, p.getMessage());
+	    }
+	    else {
+		log.log(Level.INFO, "Ignoring message from client " + id + " before CONNECT");
+	    }
+	    break;
+	case PING:
+	    Payload pong = new Payload();
+	    pong.setPayloadType(PayloadType.PONG);
+	    sendPayload(pong);
+	    break;
+	case PONG:
+	    // all it had to do was arrive, processFrame noted the time
 	    break;
 	case CLEAR_PLAYERS:
+	case ROSTER:
+	case JOINED:
+	case LEFT:
 	    // we currently don't need to do anything since the UI/Client won't be sending
-	    // this
+	    // these
 	    break;
 	default:
 	    log.log(Level.INFO, "Unhandled payload on server: " + p);
@@ -145,72 +439,73 @@ public class ServerThread extends Thread {
 	}
     }
 
-    @Override
-    public void run() {
-	try {
-	    isRunning = true;
-	    Payload fromClient;
-	    while (isRunning && // flag to let us easily control the loop
-		    !client.isClosed() // breaks the loop if our connection closes
-		    && (fromClient = (Payload) in.readObject()) != null // reads an object from inputStream (null would
-									// likely mean a disconnect)
-	    ) {
-		System.out.println("Received from client: " + fromClient);
-		processPayload(fromClient);
-	    } // close while loop
-	}
-	catch (Exception e) {
-	    // happens when client disconnects
-	    e.printStackTrace();
-	    log.log(Level.INFO, "Client Disconnected");
-	}
-	finally {
-	    isRunning = false;
-	    log.log(Level.INFO, "Cleaning up connection for ServerThread");
-	    cleanup();
+    /***
+     * First payload of a reconnecting client. With a live token it goes back to
+     * its room and gets the messages after afterSequence; otherwise it's treated
+     * like a CONNECT and starts over in the Lobby.
+     * 
+     * @param token
+     * @param name          used when the token is no good
+     * @param afterSequence last message the client has
+     */
+    private void resume(String token, String name, long afterSequence) {
+	SessionRegistry.Session session = token == null ? null : server.getSessions().claim(token);
+	String n = session != null ? session.getClientName() : name;
+	if (n == null) {
+	    return;
 	}
+	clientName = n;
+	cancelHandshakeTimeout();
+	if (session != null && server.resumeRoom(this, session.getRoomName(), afterSequence)) {
+	    log.log(Level.INFO, "Resumed " + clientName + " in " + session.getRoomName());
+	    ServerMetrics.sessionsResumed.increment();
+	}
+	else {
+	    server.joinLobby(this);
+	    send(Room.SERVER_NAME, "Couldn't resume your session, you're back in the " + SocketServer.LOBBY);
+	}
+	sendResumeToken();
     }
 
-    private void cleanup() {
-	if (currentRoom != null) {
-	    log.log(Level.INFO, getName() + " removing self from room " + currentRoom.getName());
-	    currentRoom.removeClient(this);
+    /***
+     * Leaves the current room and closes the channel. Safe to call more than once
+     * and from any thread; only the first call does anything.
+     */
+    void cleanup() {
+	if (!isCleanedUp.compareAndSet(false, true)) {
+	    return;
 	}
-	if (in != null) {
-	    try {
-		in.close();
-	    }
-	    catch (IOException e) {
-		log.log(Level.INFO, "Input already closed");
-	    }
+	ServerMetrics.connectionsClosed.increment();
+	cancelHandshakeTimeout();
+	TimerWheel.Timeout beat = heartbeat;
+	if (beat != null) {
+	    beat.cancel();
 	}
-	if (out != null) {
-	    try {
-		out.close();
-	    }
-	    catch (IOException e) {
-		log.log(Level.INFO, "Client already closed");
-	    }
+	Room room;
+	String roomName;
+	synchronized (this) {
+	    room = currentRoom;
+	    roomName = currentRoomName;
 	}
-	if (client != null && !client.isClosed()) {
-	    try {
-		client.shutdownInput();
-	    }
-	    catch (IOException e) {
-		log.log(Level.INFO, "Socket/Input already closed");
-	    }
-	    try {
-		client.shutdownOutput();
-	    }
-	    catch (IOException e) {
-		log.log(Level.INFO, "Socket/Output already closed");
-	    }
-	    try {
-		client.close();
-	    }
-	    catch (IOException e) {
-		log.log(Level.INFO, "Client already closed");
-	    }
+	if (room != null) {
+	    log.log(Level.INFO, "Client " + id + " removing self from room " + roomName);
+	    room.removeClient(this);
+	}
+	String token = resumeToken;
+	if (token != null) {
+	    // dropped, not a goodbye, so keep the session a while
+	    server.getSessions().detach(token, roomName);
+	}
+	if (channel != null) {
+	    channel.close();
+	}
+    }
+
+    private void cancelHandshakeTimeout() {
+	TimerWheel.Timeout timeout = handshakeTimeout;
+	if (timeout != null) {
+	    timeout.cancel();
+	    handshakeTimeout = null;
 	}
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,125 @@
+package server;
+
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/***
+ * Resume tokens. Every named client is given one; when its connection drops
+ * the session (name and room) is kept for GRACE_MILLIS so a client that
+ * reconnects in time can send RESUME with the token and carry on where it was.
+ * A token can only be claimed once, the resumed connection gets a new one.
+ * 
+ * Sessions only live in this node's memory, after a restart every token is
+ * unknown and the client starts over in the Lobby.
+ */
+final class SessionRegistry {
+    // how long a dropped client's session waits for it
+    final static long GRACE_MILLIS = Long.getLong("server.resumeGraceMillis", 30000);
+    private final static Logger log = Logger.getLogger(SessionRegistry.class.getName());
+    private final static SecureRandom random = new SecureRandom();
+    private final ConcurrentMap<String, Session> sessions = new ConcurrentHashMap<String, Session>();
+    private final SocketServer server;
+
+    static final class Session {
+	private final String clientName;
+	// the connection using it, null once it's dropped
+	private ServerThread client;
+	private String roomName;
+	private TimerWheel.Timeout expiry;
+
+	private Session(String clientName, ServerThread client) {
+	    this.clientName = clientName;
+	    this.client = client;
+	}
+
+	String getClientName() {
+	    return clientName;
+	}
+
+	String getRoomName() {
+	    return roomName;
+	}
+    }
+
+    SessionRegistry(SocketServer server) {
+	this.server = server;
+    }
+
+    int size() {
+	return sessions.size();
+    }
+
+    /***
+     * @param client a client that has its name
+     * @return its token
+     */
+    String open(ServerThread client) {
+	byte[] bytes = new byte[16];
+	random.nextBytes(bytes);
+	String token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+	sessions.put(token, new Session(client.getClientName(), client));
+	return token;
+    }
+
+    /***
+     * The client's connection is gone, keep its session for the grace period
+     * 
+     * @param token
+     * @param roomName the room it was in
+     */
+    void detach(String token, String roomName) {
+	sessions.computeIfPresent(token, (t, s) -> {
+	    s.client = null;
+	    s.roomName = roomName;
+	    s.expiry = server.scheduleTimeout(() -> {
+		if (sessions.remove(t, s)) {
+		    log.log(Level.FINE, "Session of {0} expired", s.clientName);
+		}
+	    }, GRACE_MILLIS);
+	    return s;
+	});
+    }
+
+    /***
+     * Drops a session for good, e.g. when the client says goodbye
+     * 
+     * @param token
+     */
+    void discard(String token) {
+	Session s = sessions.remove(token);
+	if (s != null && s.expiry != null) {
+	    s.expiry.cancel();
+	}
+    }
+
+    /***
+     * Takes a session over. If its old connection hasn't been noticed as dead yet
+     * it's cleaned up now and the resumed one goes to the room it was in.
+     * 
+     * @param token
+     * @return the session or null if the token is unknown or expired
+     */
+    Session claim(String token) {
+	Session s = sessions.remove(token);
+	if (s == null) {
+	    return null;
+	}
+	// detach works inside the map too, so it either finished before the
+	// remove or won't touch this session at all
+	if (s.expiry != null) {
+	    s.expiry.cancel();
+	}
+	ServerThread old = s.client;
+	s.client = null;
+	if (old != null) {
+	    Room room = old.getCurrentRoom();
+	    s.roomName = room == null ? null : room.getName();
+	    old.cleanup();
+	}
+	return s;
+    }
+}
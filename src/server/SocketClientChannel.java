@@ -0,0 +1,166 @@
+package server;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/***
+ * Blocking transport: one thread per socket reading frames and handing the
+ * decoded payloads to the owning ServerThread, and one writer thread draining
+ * the socket's outbound queue.
+ */
+class SocketClientChannel implements ClientChannel, Runnable {
+    private final Socket client;
+    private final ServerThread owner;
+    private final DataInputStream in;// from client
+    private final DataOutputStream out;// to client
+    private final OutboundQueue outbound = new OutboundQueue();
+    private Thread writer;
+    private final static Logger log = Logger.getLogger(SocketClientChannel.class.getName());
+
+    SocketClientChannel(Socket client, ServerThread owner) throws IOException {
+	this.client = client;
+	this.owner = owner;
+	// small buffer, frames are tiny and idle connections shouldn't cost 8k each
+	in = new DataInputStream(new BufferedInputStream(client.getInputStream(), 1024));
+	out = new DataOutputStream(client.getOutputStream());
+    }
+
+    /***
+     * Starts the reader and writer threads
+     * 
+     * @param threads platform or virtual, depending on the server mode
+     */
+    void start(ThreadFactory threads) {
+	writer = threads.newThread(this::writeLoop);
+	writer.start();
+	threads.newThread(this).start();
+    }
+
+    @Override
+    public boolean send(byte[] frame) {
+	if (client.isClosed()) {
+	    return false;
+	}
+	if (!outbound.offer(frame)) {
+	    log.log(Level.INFO, "Outbound queue full, disconnecting client " + owner.getId());
+	    // not cleanup(), the caller may hold sequenceLock and cleanup needs the
+	    // room lock. The reader thread sees the socket closed and cleans up.
+	    close();
+	    return false;
+	}
+	return true;
+    }
+
+    @Override
+    public OutboundQueue getOutbound() {
+	return outbound;
+    }
+
+    private void writeLoop() {
+	try {
+	    byte[][] frames = new byte[OutboundQueue.MAX_BATCH_FRAMES][];
+	    while (!client.isClosed()) {
+		frames[0] = outbound.take();
+		// anything else queued up while we waited goes out in the same write
+		int count = outbound.drain(frames, 1, OutboundQueue.MAX_BATCH_BYTES);
+		byte[] batch = count == 1 ? frames[0] : concat(frames, count);
+		long start = System.nanoTime();
+		out.write(batch);
+		out.flush();
+		outbound.recordWrite(count, batch.length, System.nanoTime() - start);
+		Arrays.fill(frames, 0, count, null);
+	    }
+	}
+	catch (InterruptedException e) {
+	    // closed while waiting for frames
+	}
+	catch (IOException e) {
+	    log.log(Level.INFO, "Error sending message to client (most likely disconnected)");
+	    owner.cleanup();
+	}
+    }
+
+    private static byte[] concat(byte[][] frames, int count) {
+	int size = 0;
+	for (int i = 0; i < count; i++) {
+	    size += frames[i].length;
+	}
+	byte[] batch = new byte[size];
+	int pos = 0;
+	for (int i = 0; i < count; i++) {
+	    System.arraycopy(frames[i], 0, batch, pos, frames[i].length);
+	    pos += frames[i].length;
+	}
+	return batch;
+    }
+
+    @Override
+    public void run() {
+	try {
+	    byte[] body = new byte[256];
+	    while (!client.isClosed()) {
+		int length = Frames.checkLength(in.readInt());
+		if (body.length < length) {
+		    body = new byte[Math.max(length, body.length * 2)];
+		}
+		in.readFully(body, 0, length);
+		owner.processFrame(body, 0, length);
+	    }
+	}
+	catch (EOFException e) {
+	    log.log(Level.INFO, "Client Disconnected");
+	}
+	catch (Exception e) {
+	    // happens when client disconnects
+	    if (!client.isClosed()) {
+		e.printStackTrace();
+	    }
+	    log.log(Level.INFO, "Client Disconnected");
+	}
+	finally {
+	    log.log(Level.INFO, "Cleaning up connection for ServerThread");
+	    owner.cleanup();
+	}
+    }
+
+    @Override
+    public boolean isClosed() {
+	return client.isClosed();
+    }
+
+    @Override
+    public void close() {
+	outbound.clear();
+	if (writer != null) {
+	    writer.interrupt();
+	}
+	try {
+	    in.close();
+	}
+	catch (IOException e) {
+	    log.log(Level.INFO, "Input already closed");
+	}
+	try {
+	    out.close();
+	}
+	catch (IOException e) {
+	    log.log(Level.INFO, "Client already closed");
+	}
+	if (!client.isClosed()) {
+	    try {
+		client.close();
+	    }
+	    catch (IOException e) {
+		log.log(Level.INFO, "Client already closed");
+	    }
+	}
+    }
+}
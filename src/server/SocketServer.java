@@ -3,51 +3,103 @@ import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import com.sun.net.httpserver.HttpServer;
+
 public class SocketServer {
     int port = 3000;
     public static boolean isRunning = false;
-    private List<Room> rooms = new ArrayList<Room>();
+    // keyed by roomKey(name) so lookups are case insensitive and O(1)
+    private final ConcurrentMap<String, Room> rooms = new ConcurrentHashMap<String, Room>();
     private Room lobby;// here for convenience
-    private List<Room> isolatedPrelobbies = new ArrayList<Room>();
-    private final static String PRELOBBY = "PreLobby";
+    private HistoryStore history;// null when history is turned off
+    private Cluster cluster;// null unless rooms are spread over several servers
+    private BroadcastBus bus;// null unless rooms span several servers
+    private HttpServer metrics;// null unless server.metricsPort is set
+    private final SessionRegistry sessions = new SessionRegistry(this);
+    // last sequence delivered from the bus per origin node and room
+    private final ConcurrentMap<String, RemoteSequence> remoteSequences = new ConcurrentHashMap<String, RemoteSequence>();
+    // origins and rooms quiet for this long are forgotten, a restarted node
+    // comes back under a new origin
+    final static long REMOTE_EXPIRE_MILLIS = Long.getLong("bus.expireMillis", 10 * 60 * 1000);
+    // room level timers, e.g. presence batches
+    private final ScheduledThreadPoolExecutor timers = new ScheduledThreadPoolExecutor(1, r -> {
+	Thread t = new Thread(r, "server-timers");
+	t.setDaemon(true);
+	return t;
+    });
+    // -Dserver.wheelTickMillis: resolution of the per connection timeouts
+    final static long WHEEL_TICK_MILLIS = Long.getLong("server.wheelTickMillis", 100);
+    // shared by every connection for its timeouts, no timer per client
+    private final TimerWheel wheel = new TimerWheel("server-wheel", WHEEL_TICK_MILLIS, 512, this::reapIdle);
+    // found dead by checkIdle, dropped together at the end of the wheel's tick
+    private final Queue<ServerThread> idle = new ConcurrentLinkedQueue<ServerThread>();
+    // how long a new connection has to send CONNECT before it's dropped
+    final static long HANDSHAKE_MILLIS = Long.getLong("server.handshakeMillis", 10000);
+    // a client that's sent nothing for HEARTBEAT_MILLIS is sent a PING, and one
+    // that's sent nothing for IDLE_MILLIS is dropped. 0 turns both off.
+    final static long HEARTBEAT_MILLIS = Long.getLong("server.heartbeatMillis", 15000);
+    final static long IDLE_MILLIS = Long.getLong("server.idleMillis", 3 * HEARTBEAT_MILLIS);
+    // large accept backlog so connect storms don't get refused
+    final static int BACKLOG = Integer.getInteger("server.backlog", 1024);
     protected final static String LOBBY = "Lobby";
     private final static Logger log = Logger.getLogger(SocketServer.class.getName());
 
-    private void start(int port) {
+    public SocketServer() {
+	// cancelled timers are dropped from the queue right away
+	timers.setRemoveOnCancelPolicy(true);
+    }
+
+    private void start(int port, TransportMode mode) {
 	this.port = port;
 	log.log(Level.INFO, "Waiting for client");
-	try (ServerSocket serverSocket = new ServerSocket(port);) {
-	    isRunning = true;
-	    // create a lobby on start
-	    Room.setServer(this);
-	    lobby = new Room(LOBBY);// , this);
-	    rooms.add(lobby);
-	    while (SocketServer.isRunning) {
-		try {
-		    Socket client = serverSocket.accept();
-		    log.log(Level.INFO, "Client connecting...");
-		    // Server thread is the server's representation of the client
-		    ServerThread thread = new ServerThread(client, lobby);
-		    thread.start();
-		    // create a dummy room until we get further client details
-		    // technically once a user fully joins this lobby will be destroyed
-		    // but we'll track it in an array so we can attempt to clean it up just in case
-		    Room prelobby = new Room(PRELOBBY);// , this);
-		    prelobby.addClient(thread);
-		    isolatedPrelobbies.add(prelobby);
-
-		    log.log(Level.INFO, "Client added to clients pool");
-		}
-		catch (IOException e) {
-		    e.printStackTrace();
-		}
+	isRunning = true;
+	cluster = Cluster.fromProperties();
+	history = HistoryStore.fromProperties(cluster == null ? null : cluster.getSelf());
+	// create a lobby on start
+	lobby = new Room(LOBBY, this);
+	rooms.put(roomKey(LOBBY), lobby);
+	startQueueReport();
+	try {
+	    int metricsPort = Integer.getInteger("server.metricsPort", 0);
+	    if (metricsPort > 0) {
+		metrics = ServerMetrics.serve(metricsPort, () -> ServerMetrics.scrape(rooms.values()));
+	    }
+	    bus = BroadcastBus.fromProperties(cluster == null ? null : cluster.getSelf());
+	    if (bus != null) {
+		bus.start(this::receiveRemote);
+		timers.scheduleAtFixedRate(this::expireRemoteSequences, REMOTE_EXPIRE_MILLIS, REMOTE_EXPIRE_MILLIS,
+			TimeUnit.MILLISECONDS);
+	    }
+	    switch (mode) {
+	    case NIO:
+		int loops = Integer.getInteger("server.ioLoops", Math.min(4, Runtime.getRuntime().availableProcessors()));
+		new NioServer(this, loops).start(port);
+		break;
+	    case VIRTUAL:
+		// same blocking sockets but each read loop is a virtual thread
+		acceptBlocking(port, Threads.factory("ServerThread-", true));
+		break;
+	    case BLOCKING:
+	    default:
+		acceptBlocking(port, Threads.factory("ServerThread-", false));
+		break;
 	    }
-
 	}
 	catch (IOException e) {
 	    e.printStackTrace();
@@ -64,12 +116,112 @@ public class SocketServer {
 	}
     }
 
+    private void acceptBlocking(int port, ThreadFactory threads) throws IOException {
+	try (ServerSocket serverSocket = new ServerSocket(port, BACKLOG);) {
+	    while (SocketServer.isRunning) {
+		try {
+		    Socket client = serverSocket.accept();
+		    log.log(Level.FINE, "Client connecting...");
+		    // Server thread is the server's representation of the client
+		    ServerThread thread = new ServerThread(this);
+		    SocketClientChannel channel = new SocketClientChannel(client, thread);
+		    thread.setChannel(channel);
+		    startHandshake(thread);
+		    channel.start(threads);
+
+		    log.log(Level.FINE, "Client added to clients pool");
+		}
+		catch (IOException e) {
+		    e.printStackTrace();
+		}
+	    }
+	}
+    }
+
+    /***
+     * A freshly accepted client isn't in any room until it sends CONNECT with its
+     * name. If that doesn't happen within HANDSHAKE_MILLIS the connection is
+     * considered half open and dropped. The heartbeat starts now too.
+     * 
+     * @param thread
+     */
+    void startHandshake(ServerThread thread) {
+	ServerMetrics.connectionsAccepted.increment();
+	thread.setHandshakeTimeout(wheel.schedule(() -> {
+	    if (thread.getClientName() == null) {
+		log.log(Level.INFO, "Client " + thread.getId() + " never completed the handshake, dropping");
+		thread.cleanup();
+	    }
+	}, HANDSHAKE_MILLIS));
+	if (HEARTBEAT_MILLIS > 0) {
+	    thread.setHeartbeat(wheel.schedule(() -> checkIdle(thread), HEARTBEAT_MILLIS));
+	}
+    }
+
+    /***
+     * A connection's heartbeat, on the wheel thread. Anything the client sends
+     * counts, so a busy client is never pinged; a quiet one is pinged, and
+     * dropped if it stays quiet until IDLE_MILLIS. Reschedules itself for
+     * whichever of those comes next.
+     * 
+     * @param thread
+     */
+    private void checkIdle(ServerThread thread) {
+	if (thread.isCleanedUp()) {
+	    return;
+	}
+	long quiet = thread.getIdleMillis();
+	if (quiet >= IDLE_MILLIS) {
+	    idle.add(thread);
+	    return;
+	}
+	long next = HEARTBEAT_MILLIS - quiet;
+	if (next <= 0) {
+	    thread.sendPing();
+	    next = Math.min(HEARTBEAT_MILLIS, IDLE_MILLIS - quiet);
+	}
+	thread.setHeartbeat(wheel.schedule(() -> checkIdle(thread), next));
+    }
+
+    /***
+     * Drops the connections checkIdle found dead this tick, taking each room's
+     * lock once for all of its members instead of once per member
+     */
+    private void reapIdle() {
+	if (idle.isEmpty()) {
+	    return;
+	}
+	List<ServerThread> reaped = new ArrayList<ServerThread>();
+	Map<Room, List<ServerThread>> byRoom = new HashMap<Room, List<ServerThread>>();
+	ServerThread thread;
+	while ((thread = idle.poll()) != null) {
+	    reaped.add(thread);
+	    Room room = thread.getCurrentRoom();
+	    if (room != null) {
+		byRoom.computeIfAbsent(room, r -> new ArrayList<ServerThread>()).add(thread);
+	    }
+	}
+	for (Map.Entry<Room, List<ServerThread>> e : byRoom.entrySet()) {
+	    e.getKey().removeFailedClients(e.getValue());
+	}
+	for (ServerThread c : reaped) {
+	    // already out of its room, this closes the channel and keeps the
+	    // session for a resume
+	    c.cleanup();
+	}
+	ServerMetrics.connectionsReaped.add(reaped.size());
+	log.log(Level.INFO, "Dropped " + reaped.size() + " idle connections");
+    }
+
     protected void cleanupRoom(Room r) {
-	isolatedPrelobbies.remove(r);
+	if (r.getName() != null) {
+	    // only drop the mapping if it still points at this instance
+	    rooms.remove(roomKey(r.getName()), r);
+	}
     }
 
     private void cleanup() {
-	Iterator<Room> rooms = this.rooms.iterator();
+	Iterator<Room> rooms = this.rooms.values().iterator();
 	while (rooms.hasNext()) {
 	    Room r = rooms.next();
 	    try {
@@ -79,22 +231,193 @@ public class SocketServer {
 		// it's ok to ignore this one
 	    }
 	}
-	Iterator<Room> pl = isolatedPrelobbies.iterator();
-	while (pl.hasNext()) {
-	    Room r = pl.next();
-	    try {
-		r.close();
-	    }
-	    catch (Exception e) {
-		// it's ok to ignore this one
-	    }
-	}
 	try {
 	    lobby.close();
 	}
 	catch (Exception e) {
 	    // ok to ignore this too
 	}
+	if (history != null) {
+	    history.close();
+	}
+	if (bus != null) {
+	    bus.close();
+	}
+	if (metrics != null) {
+	    metrics.stop(0);
+	}
+	wheel.close();
+    }
+
+    /***
+     * -Dserver.queueStatsSeconds=N logs every N seconds the clients that have
+     * frames waiting or have had frames dropped, plus how well writes are being
+     * coalesced
+     */
+    private void startQueueReport() {
+	int seconds = Integer.getInteger("server.queueStatsSeconds", 0);
+	if (seconds <= 0) {
+	    return;
+	}
+	timers.scheduleAtFixedRate(this::logQueueDepths, seconds, seconds, TimeUnit.SECONDS);
+    }
+
+    private void logQueueDepths() {
+	for (Room r : rooms.values()) {
+	    for (ServerThread c : r.getClients()) {
+		if (c.getQueueDepth() > 0 || c.getDroppedFrames() > 0) {
+		    log.log(Level.INFO, String.format("Client %s (%s) in %s: queued %d, high water %d, dropped %d",
+			    c.getId(), c.getClientName(), r.getName(), c.getQueueDepth(), c.getQueueHighWater(),
+			    c.getDroppedFrames()));
+		}
+	    }
+	}
+	long writes = OutboundQueue.getTotalWrites();
+	long frames = OutboundQueue.getTotalFramesWritten();
+	if (writes > 0) {
+	    log.log(Level.INFO, String.format("Writes: %d frames in %d writes, %.2f per write, %d syscalls saved",
+		    frames, writes, frames / (double) writes, frames - writes));
+	}
+    }
+
+    /***
+     * Runs a task once on the shared timer thread
+     * 
+     * @param task
+     * @param delayMillis
+     * @return
+     */
+    ScheduledFuture<?> schedule(Runnable task, long delayMillis) {
+	return timers.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /***
+     * Runs a per connection timeout on the shared timer wheel, see TimerWheel
+     * 
+     * @param task
+     * @param delayMillis
+     * @return
+     */
+    TimerWheel.Timeout scheduleTimeout(Runnable task, long delayMillis) {
+	return wheel.schedule(task, delayMillis);
+    }
+
+    /***
+     * Opens the history log for a room
+     * 
+     * @param roomName
+     * @return the log or null if history is off or the log couldn't be opened
+     */
+    MessageLog openHistory(String roomName) {
+	if (history == null) {
+	    return null;
+	}
+	try {
+	    return history.open(roomKey(roomName));
+	}
+	catch (IOException e) {
+	    log.log(Level.WARNING, "Failed to open history for " + roomName + ", continuing without it", e);
+	    return null;
+	}
+    }
+
+    /***
+     * Hands a room message to the other nodes, if there are any
+     * 
+     * @param roomName
+     * @param sequence
+     * @param frame    binary frame
+     */
+    void publish(String roomName, long sequence, byte[] frame) {
+	if (bus != null) {
+	    bus.publish(roomKey(roomName), sequence, frame);
+	}
+    }
+
+    /***
+     * The last sequence delivered from one origin for one room and when
+     */
+    private static class RemoteSequence {
+	final long sequence;
+	final long nanos = System.nanoTime();
+
+	RemoteSequence(long sequence) {
+	    this.sequence = sequence;
+	}
+    }
+
+    /***
+     * A message from another node. Each node's sequence numbers for a room only
+     * go up, so anything at or below the last one seen from that node is a
+     * repeat (e.g. a batch resent after a reconnect) and is dropped.
+     */
+    private void receiveRemote(String origin, String roomKey, long sequence, byte[] frame) {
+	String key = origin + "/" + roomKey;
+	RemoteSequence next = new RemoteSequence(sequence);
+	while (true) {
+	    RemoteSequence last = remoteSequences.get(key);
+	    if (last != null && sequence <= last.sequence) {
+		return;
+	    }
+	    if (last == null ? remoteSequences.putIfAbsent(key, next) == null
+		    : remoteSequences.replace(key, last, next)) {
+		break;
+	    }
+	}
+	Room room = rooms.get(roomKey);
+	if (room == null) {
+	    // nobody here is in that room
+	    return;
+	}
+	try {
+	    Payload p = Frames.BINARY.decode(frame, Frames.HEADER_SIZE, frame.length - Frames.HEADER_SIZE);
+	    // the origin's numbers mean nothing next to this room's, so clients
+	    // here get it unnumbered
+	    p.setSequence(0);
+	    Broadcast b = new Broadcast(p);
+	    room.deliverRemote(b, b.frameFor(Frames.BINARY).length);
+	}
+	catch (IOException e) {
+	    log.log(Level.WARNING, "Bad frame from node " + origin, e);
+	}
+    }
+
+    /***
+     * Forgets origins and rooms nothing has arrived from for
+     * REMOTE_EXPIRE_MILLIS. Resends follow a reconnect within seconds, so a
+     * repeat that old isn't expected; without this every restart of a peer
+     * would leave its old origin here for good.
+     */
+    private void expireRemoteSequences() {
+	long cutoff = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(REMOTE_EXPIRE_MILLIS);
+	// only removes an entry if it wasn't replaced in the meantime
+	remoteSequences.values().removeIf(r -> r.nanos - cutoff < 0);
+    }
+
+    SessionRegistry getSessions() {
+	return sessions;
+    }
+
+    /***
+     * Puts a resumed client back in the room it dropped out of, reopening the
+     * room if it closed when the client left (its history carries on where it
+     * was)
+     * 
+     * @param client
+     * @param roomName
+     * @param afterSequence last message the client has
+     * @return false if the client couldn't be put back
+     */
+    protected boolean resumeRoom(ServerThread client, String roomName, long afterSequence) {
+	if (roomName == null) {
+	    return false;
+	}
+	Room room = getRoom(roomName);
+	if (room == null) {
+	    createNewRoom(roomName);
+	    room = getRoom(roomName);
+	}
+	return room != null && room.addClient(client, afterSequence);
     }
 
     protected Room getLobby() {
@@ -102,92 +425,126 @@ public class SocketServer {
     }
 
     /***
-     * Special helper to join the lobby and close the previous room client was in if
-     * it's marked as Prelobby. Mostly used for prelobby once the server receives
-     * more client details.
+     * Special helper to join the lobby, used once the server receives the
+     * client's details and when a room closes
      * 
      * @param client
      */
     protected void joinLobby(ServerThread client) {
-	Room prelobby = client.getCurrentRoom();
 	if (joinRoom(LOBBY, client)) {
-	    prelobby.removeClient(client);
-	    log.log(Level.INFO, "Added " + client.getClientName() + " to Lobby; Prelobby should self destruct");
+	    log.log(Level.FINE, "Added {0} to Lobby", client.getClientName());
 	}
 	else {
 	    log.log(Level.INFO, "Problem moving " + client.getClientName() + " to lobby");
 	}
     }
 
+    /***
+     * Normalizes a room name into its registry key
+     * 
+     * @param roomName
+     * @return
+     */
+    private static String roomKey(String roomName) {
+	return roomName.toLowerCase(Locale.ROOT);
+    }
+
+    /***
+     * In a cluster, sends the client off to the node that owns the room if it
+     * isn't this one. The Lobby is always local.
+     * 
+     * @param roomName
+     * @param client
+     * @param command  what the client should repeat once it's connected there
+     * @return true if the client was redirected
+     */
+    protected boolean redirectIfRemote(String roomName, ServerThread client, String command) {
+	if (cluster == null) {
+	    return false;
+	}
+	String key = roomKey(roomName);
+	if (key.equals(roomKey(LOBBY)) || cluster.isLocal(key)) {
+	    return false;
+	}
+	String owner = cluster.ownerOf(key);
+	if (log.isLoggable(Level.FINE)) {
+	    log.log(Level.FINE, "Redirecting {0} to node {1} for room {2}",
+		    new Object[] { client.getClientName(), owner, roomName });
+	}
+	return client.sendRedirect(cluster.addressOf(owner), command);
+    }
+
     /***
      * Helper function to check if room exists by case insensitive name
      * 
      * @param roomName The name of the room to look for
      * @return matched Room or null if not found
      */
-    private Room getRoom(String roomName) {
-	for (int i = 0, l = rooms.size(); i < l; i++) {
-	    Room r = rooms.get(i);
-	    if (r == null || r.getName() == null) {
-		continue;
-	    }
-	    if (r.getName().equalsIgnoreCase(roomName)) {
-		return r;
-	    }
-	}
-	return null;
+    Room getRoom(String roomName) {
+	return rooms.get(roomKey(roomName));
     }
 
     /***
-     * Attempts to join a room by name. Will remove client from old room and add
-     * them to the new room.
+     * Attempts to join a room by name. The client is added to the new room before
+     * leaving the old one, so if the new room closes underneath us the client
+     * stays where it was. Doesn't lock anything but the two rooms involved.
      * 
      * @param roomName The desired room to join
      * @param client   The client moving rooms
      * @return true if reassign worked; false if new room doesn't exist
      */
-    protected synchronized boolean joinRoom(String roomName, ServerThread client) {
-	if (roomName == null || roomName.equalsIgnoreCase(PRELOBBY)) {
+    protected boolean joinRoom(String roomName, ServerThread client) {
+	if (roomName == null) {
 	    return false;
 	}
 	Room newRoom = getRoom(roomName);
 	Room oldRoom = client.getCurrentRoom();
-	if (newRoom != null) {
-	    if (oldRoom != null) {
-		log.log(Level.INFO, client.getClientName() + " leaving room " + oldRoom.getName());
-		oldRoom.removeClient(client);
-	    }
-	    log.log(Level.INFO, client.getClientName() + " joining room " + newRoom.getName());
-	    newRoom.addClient(client);
+	if (newRoom == null) {
+	    return false;
+	}
+	if (newRoom == oldRoom) {
+	    log.log(Level.FINE, "{0} is already in room {1}", new Object[] { client.getClientName(), newRoom.getName() });
 	    return true;
 	}
-	return false;
+	if (log.isLoggable(Level.FINE)) {
+	    log.log(Level.FINE, "{0} joining room {1}", new Object[] { client.getClientName(), newRoom.getName() });
+	}
+	if (!newRoom.addClient(client)) {
+	    // closed after we looked it up
+	    return false;
+	}
+	if (oldRoom != null) {
+	    if (log.isLoggable(Level.FINE)) {
+		log.log(Level.FINE, "{0} leaving room {1}", new Object[] { client.getClientName(), oldRoom.getName() });
+	    }
+	    oldRoom.removeClient(client);
+	}
+	return true;
     }
 
     /***
      * Attempts to create a room with given name if it doesn't exist already.
+     * Atomic, two clients racing to create the same room get one winner.
      * 
      * @param roomName The desired room to create
      * @return true if it was created and false if it exists
      */
-    protected synchronized boolean createNewRoom(String roomName) {
-	if (roomName == null || roomName.equalsIgnoreCase(PRELOBBY)) {
+    protected boolean createNewRoom(String roomName) {
+	if (roomName == null) {
 	    return false;
 	}
-	if (getRoom(roomName) != null) {
+	String key = roomKey(roomName);
+	if (rooms.containsKey(key) || rooms.putIfAbsent(key, new Room(roomName, this)) != null) {
 	    // TODO can't create room
 	    log.log(Level.INFO, "Room already exists");
 	    return false;
 	}
-	else {
-	    Room room = new Room(roomName);// , this);
-	    rooms.add(room);
-	    log.log(Level.INFO, "Created new room: " + roomName);
-	    return true;
-	}
+	log.log(Level.INFO, "Created new room: {0}", roomName);
+	return true;
     }
 
     public static void main(String[] args) {
+	ServerLogging.install();
 	// let's allow port to be passed as a command line arg
 	// in eclipse you can set this via "Run Configurations"
 	// -> "Arguments" -> type the port in the text box -> Apply
@@ -198,11 +555,22 @@ public class SocketServer {
 	catch (Exception e) {
 	    // ignore this, we know it was a parsing issue
 	}
+	// optional second arg picks the transport so both can be run against the
+	// same load, e.g. "3000 nio"
+	TransportMode mode = TransportMode.BLOCKING;
+	if (args.length > 1) {
+	    try {
+		mode = TransportMode.valueOf(args[1].toUpperCase(Locale.ROOT));
+	    }
+	    catch (IllegalArgumentException e) {
+		log.log(Level.WARNING, "Unknown transport " + args[1] + ", using " + mode);
+	    }
+	}
 	if (port > -1) {
 	    log.log(Level.INFO, "Starting Server");
 	    SocketServer server = new SocketServer();
-	    log.log(Level.INFO, "Listening on port " + port);
-	    server.start(port);
+	    log.log(Level.INFO, "Listening on port " + port + " (" + mode + ")");
+	    server.start(port, mode);
 	    log.log(Level.INFO, "Server Stopped");
 	}
     }
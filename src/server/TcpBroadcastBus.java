@@ -0,0 +1,360 @@
+package server;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/***
+ * Bus between server processes over persistent TCP links. Each node listens on
+ * bus.host:bus.port and opens one connection to every address in bus.peers.
+ * The links aren't authenticated, so bus.host defaults to the loopback address
+ * and should only be set to an interface on a trusted network.
+ * 
+ * Publishing only queues. A sender thread per peer takes whatever has queued
+ * up since its last write as one batch, deflates it and writes it in one go, so
+ * the busier the room the bigger the batches. If a link drops, the batch being
+ * sent is kept and sent again after reconnecting; the receiver drops anything
+ * it has already seen by sequence number.
+ * 
+ * Wire format per batch: raw length (int), compressed length (int), then the
+ * deflated body: origin (UTF), count (int) and per message room key (UTF),
+ * sequence (long), frame length (int), frame.
+ */
+final class TcpBroadcastBus implements BroadcastBus {
+    private final static Logger log = Logger.getLogger(TcpBroadcastBus.class.getName());
+    final static int QUEUE_CAPACITY = Integer.getInteger("bus.queue", 65536);
+    private final static int MAX_BATCH = 1024;
+    // a batch is at most MAX_BATCH frames, each under Frames.MAX_FRAME
+    private final static int MAX_BATCH_BYTES = 64 * 1024 * 1024;
+    private final static long RETRY_MILLIS = 1000;
+    private final String origin;
+    private final String host;// null for loopback
+    private final int port;
+    private final List<Peer> peers = new ArrayList<Peer>();
+    private final ThreadFactory threads = Threads.factory("bus-", false);
+    private ServerSocket serverSocket;
+    private volatile boolean isRunning = true;
+    private final AtomicLong dropped = new AtomicLong();
+
+    private static class Message {
+	final String roomKey;
+	final long sequence;
+	final byte[] frame;
+
+	Message(String roomKey, long sequence, byte[] frame) {
+	    this.roomKey = roomKey;
+	    this.sequence = sequence;
+	    this.frame = frame;
+	}
+    }
+
+    /***
+     * @param origin
+     * @param host     address to listen on, null for loopback
+     * @param port     0 for any free port
+     * @param peerList host:port,...
+     */
+    TcpBroadcastBus(String origin, String host, int port, String peerList) {
+	this.origin = origin;
+	this.host = host;
+	this.port = port;
+	for (String address : peerList.split(",")) {
+	    address = address.trim();
+	    if (!address.isEmpty()) {
+		int colon = address.lastIndexOf(':');
+		if (colon < 0) {
+		    throw new IllegalArgumentException("Expected host:port in bus.peers, got " + address);
+		}
+		peers.add(new Peer(new InetSocketAddress(address.substring(0, colon),
+			Integer.parseInt(address.substring(colon + 1)))));
+	    }
+	}
+    }
+
+    @Override
+    public String getOrigin() {
+	return origin;
+    }
+
+    @Override
+    public void start(Listener listener) throws IOException {
+	InetAddress address = host == null ? InetAddress.getLoopbackAddress() : InetAddress.getByName(host);
+	serverSocket = new ServerSocket(port, 50, address);
+	log.log(Level.INFO, "Bus node " + origin + " on " + serverSocket.getLocalSocketAddress() + ", "
+		+ peers.size() + " peers");
+	Thread accept = threads.newThread(() -> acceptLoop(listener));
+	accept.setDaemon(true);
+	accept.start();
+	for (Peer p : peers) {
+	    p.sender = threads.newThread(p::sendLoop);
+	    p.sender.setDaemon(true);
+	    p.sender.start();
+	}
+    }
+
+    @Override
+    public void publish(String roomKey, long sequence, byte[] frame) {
+	Message m = new Message(roomKey, sequence, frame);
+	for (Peer p : peers) {
+	    if (!p.queue.offer(m) && dropped.getAndIncrement() % 1000 == 0) {
+		// a peer that's down for long enough loses messages rather than
+		// holding up the room
+		log.log(Level.WARNING, "Bus queue to " + p.address + " is full, " + dropped.get() + " dropped");
+	    }
+	}
+    }
+
+    @Override
+    public void close() {
+	isRunning = false;
+	try {
+	    if (serverSocket != null) {
+		serverSocket.close();
+	    }
+	}
+	catch (IOException e) {
+	    // closing anyway
+	}
+	// a sender blocked in a write only notices once its socket closes
+	for (Peer p : peers) {
+	    if (p.sender != null) {
+		p.sender.interrupt();
+	    }
+	    p.disconnect();
+	}
+	for (Peer p : peers) {
+	    if (p.sender != null) {
+		try {
+		    p.sender.join(RETRY_MILLIS);
+		}
+		catch (InterruptedException e) {
+		    Thread.currentThread().interrupt();
+		    return;
+		}
+	    }
+	}
+    }
+
+    /***
+     * Outgoing link to one other node
+     */
+    private class Peer {
+	final InetSocketAddress address;
+	final BlockingQueue<Message> queue = new ArrayBlockingQueue<Message>(QUEUE_CAPACITY);
+	Thread sender;
+	// set and cleared under the peer's lock, the sender reads out once per batch
+	private Socket socket;
+	private volatile OutputStream out;
+	private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+	private final ByteArrayOutputStream raw = new ByteArrayOutputStream(64 * 1024);
+	private byte[] compressed = new byte[64 * 1024];
+
+	Peer(InetSocketAddress address) {
+	    this.address = address;
+	}
+
+	void sendLoop() {
+	    List<Message> batch = new ArrayList<Message>(MAX_BATCH);
+	    try {
+		while (isRunning) {
+		    try {
+			if (batch.isEmpty()) {
+			    Message first = queue.poll(1, TimeUnit.SECONDS);
+			    if (first == null) {
+				continue;
+			    }
+			    batch.add(first);
+			    queue.drainTo(batch, MAX_BATCH - 1);
+			}
+			// close may clear out at any point, a closed stream
+			// just fails the write
+			OutputStream o = out;
+			write(batch, o != null ? o : connect());
+			batch.clear();
+		    }
+		    catch (IOException e) {
+			if (!isRunning) {
+			    return;
+			}
+			log.log(Level.FINE, "Bus link to " + address + " failed, retrying", e);
+			disconnect();
+			Thread.sleep(RETRY_MILLIS);
+		    }
+		}
+	    }
+	    catch (InterruptedException e) {
+		// closing
+	    }
+	    finally {
+		deflater.end();
+	    }
+	}
+
+	private OutputStream connect() throws IOException {
+	    Socket s = new Socket();
+	    s.setTcpNoDelay(true);
+	    s.connect(address, (int) RETRY_MILLIS);
+	    OutputStream o = s.getOutputStream();
+	    synchronized (this) {
+		if (!isRunning) {
+		    s.close();
+		    throw new IOException("Bus closed");
+		}
+		socket = s;
+		out = o;
+	    }
+	    log.log(Level.INFO, "Bus connected to " + address);
+	    return o;
+	}
+
+	private void write(List<Message> batch, OutputStream to) throws IOException {
+	    raw.reset();
+	    DataOutputStream d = new DataOutputStream(raw);
+	    d.writeUTF(origin);
+	    d.writeInt(batch.size());
+	    for (Message m : batch) {
+		d.writeUTF(m.roomKey);
+		d.writeLong(m.sequence);
+		d.writeInt(m.frame.length);
+		d.write(m.frame);
+	    }
+	    byte[] body = raw.toByteArray();
+	    deflater.reset();
+	    deflater.setInput(body);
+	    deflater.finish();
+	    int size = 8;
+	    while (!deflater.finished()) {
+		if (size == compressed.length) {
+		    compressed = Arrays.copyOf(compressed, size * 2);
+		}
+		size += deflater.deflate(compressed, size, compressed.length - size);
+	    }
+	    writeInt(compressed, 0, body.length);
+	    writeInt(compressed, 4, size - 8);
+	    to.write(compressed, 0, size);
+	    to.flush();
+	}
+
+	synchronized void disconnect() {
+	    if (socket != null) {
+		try {
+		    socket.close();
+		}
+		catch (IOException e) {
+		    // already broken
+		}
+	    }
+	    socket = null;
+	    out = null;
+	}
+    }
+
+    private static void writeInt(byte[] b, int pos, int value) {
+	b[pos] = (byte) (value >>> 24);
+	b[pos + 1] = (byte) (value >>> 16);
+	b[pos + 2] = (byte) (value >>> 8);
+	b[pos + 3] = (byte) value;
+    }
+
+    private void acceptLoop(Listener listener) {
+	while (isRunning) {
+	    try {
+		Socket s = serverSocket.accept();
+		Thread t = threads.newThread(() -> readLoop(s, listener));
+		t.setDaemon(true);
+		t.start();
+	    }
+	    catch (IOException e) {
+		if (isRunning) {
+		    log.log(Level.WARNING, "Bus accept failed", e);
+		}
+	    }
+	}
+    }
+
+    private void readLoop(Socket s, Listener listener) {
+	Inflater inflater = new Inflater();
+	try (DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()))) {
+	    byte[] compressed = new byte[64 * 1024];
+	    byte[] body = new byte[64 * 1024];
+	    while (isRunning) {
+		int rawLength = in.readInt();
+		int length = in.readInt();
+		if (rawLength < 0 || rawLength > MAX_BATCH_BYTES || length < 0 || length > MAX_BATCH_BYTES) {
+		    throw new IOException("Bad bus batch size " + rawLength + "/" + length);
+		}
+		if (compressed.length < length) {
+		    compressed = new byte[length];
+		}
+		if (body.length < rawLength) {
+		    body = new byte[rawLength];
+		}
+		in.readFully(compressed, 0, length);
+		inflater.reset();
+		inflater.setInput(compressed, 0, length);
+		int n = 0;
+		while (n < rawLength && !inflater.finished()) {
+		    int r = inflater.inflate(body, n, rawLength - n);
+		    if (r == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+			break;
+		    }
+		    n += r;
+		}
+		if (n != rawLength) {
+		    throw new IOException("Truncated bus batch");
+		}
+		deliver(new DataInputStream(new ByteArrayInputStream(body, 0, rawLength)), listener);
+	    }
+	}
+	catch (IOException | DataFormatException e) {
+	    if (isRunning) {
+		log.log(Level.FINE, "Bus link from " + s.getRemoteSocketAddress() + " closed", e);
+	    }
+	}
+	finally {
+	    inflater.end();
+	    try {
+		s.close();
+	    }
+	    catch (IOException e) {
+		// done with it
+	    }
+	}
+    }
+
+    private static void deliver(DataInputStream batch, Listener listener) throws IOException {
+	String from = batch.readUTF();
+	int count = batch.readInt();
+	for (int i = 0; i < count; i++) {
+	    String roomKey = batch.readUTF();
+	    long sequence = batch.readLong();
+	    int length = batch.readInt();
+	    // the length covers the frame's own header, MAX_FRAME is for the body
+	    Frames.checkLength(length - Frames.HEADER_SIZE);
+	    byte[] frame = new byte[length];
+	    batch.readFully(frame);
+	    listener.onMessage(from, roomKey, sequence, frame);
+	}
+    }
+}
@@ -0,0 +1,51 @@
+package server;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/***
+ * Creates the threads used for per-connection loops. Virtual threads are only
+ * available on Java 21+, so they're looked up reflectively and we fall back to
+ * platform threads on older runtimes.
+ */
+public class Threads {
+    private final static Logger log = Logger.getLogger(Threads.class.getName());
+
+    private Threads() {
+    }
+
+    /***
+     * @param prefix  thread names will be prefix followed by a counter
+     * @param virtual true to try for virtual threads
+     * @return a factory for virtual threads if asked for and supported, platform
+     *         threads otherwise
+     */
+    public static ThreadFactory factory(String prefix, boolean virtual) {
+	if (virtual) {
+	    ThreadFactory f = virtualFactory(prefix);
+	    if (f != null) {
+		return f;
+	    }
+	    log.log(Level.WARNING, "Virtual threads need Java 21+, using platform threads for " + prefix);
+	}
+	AtomicLong count = new AtomicLong();
+	return r -> new Thread(r, prefix + count.getAndIncrement());
+    }
+
+    private static ThreadFactory virtualFactory(String prefix) {
+	try {
+	    // Thread.ofVirtual().name(prefix, 0).factory()
+	    Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+	    Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+	    builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, prefix, 0L);
+	    Method factory = builderClass.getMethod("factory");
+	    return (ThreadFactory) factory.invoke(builder);
+	}
+	catch (ReflectiveOperationException | LinkageError e) {
+	    return null;
+	}
+    }
+}
@@ -0,0 +1,157 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/***
+ * Hashed timer wheel: one thread and a ring of buckets, each one tick wide, for
+ * the timeouts every connection has (handshake, heartbeat, idle, resume grace).
+ * Scheduling and cancelling are O(1) from any thread and nothing is kept in a
+ * heap, so thousands of connections cost one thread and a list entry apiece. A
+ * timeout fires within a tick of when it's due.
+ * 
+ * New timeouts are queued and only moved into their bucket by the wheel
+ * thread, which is the only one that touches the buckets. Cancelled ones are
+ * dropped when the wheel next passes their bucket.
+ */
+final class TimerWheel {
+    private final static Logger log = Logger.getLogger(TimerWheel.class.getName());
+    private final long tickNanos;
+    private final int mask;
+    private final List<List<Timeout>> buckets;
+    private final Queue<Timeout> added = new ConcurrentLinkedQueue<Timeout>();
+    private final Runnable afterTick;
+    private final Thread thread;
+    private final long start = System.nanoTime();
+    private long tick = 0;// wheel thread only
+    private volatile boolean isRunning = true;
+
+    static final class Timeout {
+	private final static int PENDING = 0;
+	private final static int CANCELLED = 1;
+	private final static int EXPIRED = 2;
+	private final Runnable task;
+	private final long deadline;
+	private final AtomicInteger state = new AtomicInteger(PENDING);
+	private long rounds;// full turns of the wheel left, wheel thread only
+
+	private Timeout(Runnable task, long deadline) {
+	    this.task = task;
+	    this.deadline = deadline;
+	}
+
+	/***
+	 * @return false if it already ran or was already cancelled
+	 */
+	boolean cancel() {
+	    return state.compareAndSet(PENDING, CANCELLED);
+	}
+    }
+
+    /***
+     * @param name
+     * @param tickMillis resolution
+     * @param slots      buckets, rounded up to a power of two
+     * @param afterTick  runs on the wheel thread after each tick's timeouts, may
+     *                   be null
+     */
+    TimerWheel(String name, long tickMillis, int slots, Runnable afterTick) {
+	tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMillis));
+	int size = Integer.highestOneBit(Math.max(2, slots) * 2 - 1);
+	mask = size - 1;
+	buckets = new ArrayList<List<Timeout>>(size);
+	for (int i = 0; i < size; i++) {
+	    buckets.add(new ArrayList<Timeout>());
+	}
+	this.afterTick = afterTick;
+	thread = new Thread(this::run, name);
+	thread.setDaemon(true);
+	thread.start();
+    }
+
+    /***
+     * Runs a task once on the wheel thread. Tasks should be quick, they hold up
+     * every other timeout.
+     * 
+     * @param task
+     * @param delayMillis
+     * @return
+     */
+    Timeout schedule(Runnable task, long delayMillis) {
+	Timeout t = new Timeout(task, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMillis)));
+	added.add(t);
+	return t;
+    }
+
+    void close() {
+	isRunning = false;
+	LockSupport.unpark(thread);
+    }
+
+    private void run() {
+	while (isRunning) {
+	    long wait = start + (tick + 1) * tickNanos - System.nanoTime();
+	    if (wait > 0) {
+		LockSupport.parkNanos(this, wait);
+		continue;
+	    }
+	    transferAdded();
+	    expire(buckets.get((int) (tick & mask)));
+	    tick++;
+	    if (afterTick != null) {
+		try {
+		    afterTick.run();
+		}
+		catch (RuntimeException e) {
+		    log.log(Level.WARNING, "Timer wheel hook failed", e);
+		}
+	    }
+	}
+    }
+
+    /***
+     * Puts queued timeouts in the bucket of the tick they're due in, or the
+     * current one if they're already late
+     */
+    private void transferAdded() {
+	Timeout t;
+	while ((t = added.poll()) != null) {
+	    if (t.state.get() != Timeout.PENDING) {
+		continue;
+	    }
+	    long due = Math.max(tick, (t.deadline - start) / tickNanos);
+	    t.rounds = (due - tick) / buckets.size();
+	    buckets.get((int) (due & mask)).add(t);
+	}
+    }
+
+    private void expire(List<Timeout> bucket) {
+	int keep = 0;
+	for (int i = 0; i < bucket.size(); i++) {
+	    Timeout t = bucket.get(i);
+	    if (t.state.get() != Timeout.PENDING) {
+		continue;
+	    }
+	    if (t.rounds > 0) {
+		t.rounds--;
+		bucket.set(keep++, t);
+	    }
+	    else if (t.state.compareAndSet(Timeout.PENDING, Timeout.EXPIRED)) {
+		try {
+		    t.task.run();
+		}
+		catch (RuntimeException e) {
+		    log.log(Level.WARNING, "Timeout task failed", e);
+		}
+	    }
+	}
+	bucket.subList(keep, bucket.size()).clear();
+    }
+}
@@ -0,0 +1,5 @@
+package server;
+
+public enum TransportMode {
+    BLOCKING, VIRTUAL, NIO
+}